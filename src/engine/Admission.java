@@ -0,0 +1,440 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.Message;
+import net.Peer;
+import net.PeerFinder;
+import net.PeerListener;
+import net.ShmRing;
+import net.Message.OfferHelpRequest;
+import net.Message.OfferHelpResponse;
+import net.Message.ReceivedAgent;
+import ui.CellGrid;
+import world.Agent;
+import world.LocalCell;
+
+/**
+ * Bringing helpers into a run before it starts. The first engine divides its
+ * region among itself and the helpers it expects, gives each its part as it
+ * joins and tells everyone the layout; once all have joined, the helpers
+ * link up with each other directly.
+ */
+public class Admission {
+
+	final LocalEngine engine;
+	// How the first engine is dividing the world: its own part, then one
+	// for each helper in the order they join.
+	ArrayList<Message.Region> plan;
+
+	Admission(LocalEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Works out how to divide our region among ourselves and this many
+	 * helpers so that each has about the same cost of agents, and takes the
+	 * first part. The agents in the rest stay in our cells until each
+	 * helper is sent its part. Only called before we start running.
+	 */
+	void plan(int helpers) {
+		Bisection bisection = new Bisection(new Message.Region(engine.tlx, engine.tly,
+				engine.width, engine.height));
+		for (LocalCell cell : engine.activeCells) {
+			double weight = 0;
+			for (Agent a : cell.getAgents()) {
+				weight += cost(a);
+			}
+			bisection.add(cell.getX(), cell.getY(), weight);
+		}
+		plan = bisection.split(helpers + 1);
+		Message.Region mine = plan.get(0);
+		engine.setCoordinates(mine.tlx, mine.tly, mine.width, mine.height);
+		// TODO: Actually change the size of the data structure that
+		// holds the cells.
+		if (engine.gui != null) {
+			engine.gui.dispose();
+			engine.gui = new CellGrid(engine.height, engine.width, engine.tlx, engine.tly);
+			for (LocalCell cell : engine.activeCells) {
+				if (engine.hasCell(cell.getX(), cell.getY())) {
+					engine.markDirty(cell);
+				}
+			}
+		}
+	}
+
+	/*
+	 * How much work an agent is expected to be, from the population file.
+	 */
+	private double cost(Agent a) {
+		Double cost = engine.costs.get(a.getClass().getName());
+		return cost == null ? 1 : cost;
+	}
+
+	/**
+	 * Gives the engine that asked for help its part of the plan, with the
+	 * agents in it in one POPULATION message. If it is on the same machine
+	 * as us, we both move onto its shared memory link first.
+	 */
+	private void sendCells(RemoteEngine remote, OfferHelpRequest req) {
+		ShmRing[] rings = ShmRing.map(req.shmPath, req.token, false);
+		int ordinal = engine.nextOrdinal++;
+		Message.Region given = plan.get(ordinal);
+
+		Message.sendOfferHelpResp(remote.out, given.tlx, given.tly,
+				given.width, given.height, engine.globalWidth, engine.globalHeight, engine.tlx, engine.tly,
+				engine.width, engine.height, ordinal, engine.turn, rings != null);
+		if (rings != null) {
+			if (engine.verbose) {
+				System.out.println("Peer is on this machine, using " + req.shmPath);
+			}
+			remote.useRings(rings);
+		}
+		remote.setCoordinates(given.tlx, given.tly, given.width, given.height);
+		ArrayList<LocalCell> theirs = new ArrayList<LocalCell>();
+		for (LocalCell cell : engine.activeCells) {
+			if (remote.hasCell(cell.getX(), cell.getY())) {
+				theirs.add(cell);
+			}
+		}
+		Message.sendPopulation(remote.out, theirs);
+		for (LocalCell cell : theirs) {
+			cell.clear();
+		}
+		remote.listenHost = remote.socket.getInetAddress().getHostAddress();
+		remote.listenPort = req.port;
+		engine.timeTable.expect(remote.getID());
+		engine.peerList.add(remote);
+	}
+
+	/**
+	 * Joins the engine at the other end of the socket as a helper: takes the
+	 * part of its region it gives us, waits for everyone it expects to join,
+	 * then links up directly with the other helpers.
+	 */
+	static LocalEngine join(Socket socket, boolean gui, boolean sparse,
+			boolean conservative) throws Exception {
+		RemoteEngine server = new RemoteEngine(socket);
+		// The other helpers connect to us here.
+		ServerSocket listener = new ServerSocket(0);
+		// Offer a shared memory link in case the server turns out to be on
+		// this machine.
+		long token = ShmRing.newToken();
+		File shm = ShmRing.create(token);
+		ShmRing[] rings = shm == null ? null : ShmRing.map(shm.getPath(),
+				token, true);
+		Message.sendOfferHelpReq(server.out, rings == null ? "" : shm
+				.getPath(), token, listener.getLocalPort());
+		OfferHelpResponse r = Message.recvOfferHelpResp(server.in);
+		// Both of us have it mapped by now, if we are using it.
+		if (shm != null) {
+			shm.delete();
+		}
+		if (r.shm) {
+			server.useRings(rings);
+		}
+		LocalEngine engine = new LocalEngine(r.getTlx(), r.getTly(), r
+				.getWidth(), r.getHeight(), r.getGlobalWidth(), r
+				.getGlobalHeight(), gui, sparse);
+		engine.setConservative(conservative);
+		engine.setOrdinal(r.ordinal);
+		engine.turn = r.turn;
+		// Our agents come all at once, before anything else, and are simply
+		// placed; nothing has run yet that they could be out of step with.
+		for (ReceivedAgent a : Message.recvPopulation(server.in, engine.pool)) {
+			engine.placeAgent(a.x, a.y, a.agent);
+		}
+		server.setEngine(engine);
+		engine.peerList.add(server);
+		server.setCoordinates(r.sendertlx, r.sendertly, r.senderw, r.senderh);
+		server.listen();
+		// The server sends the final layout once every helper has joined.
+		engine.admission.awaitStart();
+		engine.admission.connectPeers(listener);
+		return engine;
+	}
+
+	/**
+	 * Finds an engine to help through the finder and joins it as join(Socket)
+	 * does, then registers us with the finder as a helper.
+	 */
+	public static LocalEngine join(PeerFinder finder, boolean gui,
+			boolean sparse, boolean conservative) throws Exception {
+		Peer coordinator = findCoordinator(finder);
+		Socket socket = new Socket(coordinator.getAddress(), coordinator
+				.getPort());
+		LocalEngine engine = join(socket, gui, sparse, conservative);
+		// Helpers accept nothing once everyone is linked.
+		finder.register(engine.admission.describe(PeerFinder.HELPER, -1));
+		return engine;
+	}
+
+	/**
+	 * Starts a run as the engine helpers join: registers us with the finder,
+	 * if there is one, as somewhere to join on the socket's port, admits
+	 * this many helpers, then registers our new region.
+	 */
+	public void coordinate(ServerSocket serverSocket, int helpers,
+			PeerFinder finder) throws InterruptedException, IOException {
+		if (finder != null) {
+			finder.register(describe(PeerFinder.COORDINATOR, serverSocket
+					.getLocalPort()));
+		}
+		admitHelpers(serverSocket, helpers);
+		if (finder != null) {
+			finder.register(describe(PeerFinder.COORDINATOR, serverSocket
+					.getLocalPort()));
+		}
+	}
+
+	/**
+	 * @return the latest layout of the world from the first engine, or null
+	 *         if we are the first engine or none has come yet.
+	 */
+	public Message.RegionMap getRegionMap() {
+		synchronized (engine.handover.regionLock) {
+			return engine.handover.regionMap;
+		}
+	}
+
+	/**
+	 * Admits helpers until there are this many, giving each its part of a
+	 * plan made from where our agents are now. Each is handled on its own
+	 * thread, so a slow one does not hold up the rest; only handing out the
+	 * parts and the layout update are done one at a time.
+	 */
+	void admitHelpers(ServerSocket serverSocket, final int helpers)
+			throws InterruptedException, IOException {
+		plan(helpers);
+		ArrayList<Thread> joins = new ArrayList<Thread>();
+		for (int k = 0; k < helpers; k++) {
+			final Socket socket = serverSocket.accept();
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					admit(socket, helpers);
+				}
+			}, "join-" + socket.getRemoteSocketAddress());
+			t.start();
+			joins.add(t);
+		}
+		for (Thread t : joins) {
+			t.join();
+		}
+	}
+
+	private void admit(Socket socket, int helpers) {
+		try {
+			socket.setTcpNoDelay(true);
+			RemoteEngine client = new RemoteEngine(socket, engine);
+			if (client.in.read() != Message.OFFERHELP) {
+				throw new Exception("Expected offer help request.");
+			}
+			OfferHelpRequest req = Message.recvOfferHelpReq(client.in);
+			// Each helper takes its part of the plan, and everyone hears
+			// about the new layout.
+			synchronized (engine.handover.regionLock) {
+				sendCells(client, req);
+				client.listen();
+				sendRegionMap(engine.peerList.size() == helpers);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Waits for a finder to come across an engine that helpers can join.
+	 */
+	static Peer findCoordinator(PeerFinder finder) throws InterruptedException {
+		final Peer[] found = new Peer[1];
+		PeerListener listener = new PeerListener() {
+			public void foundPeer(Peer p) {
+				if (PeerFinder.COORDINATOR.equals(p.getAttribute(PeerFinder.ROLE))) {
+					synchronized (found) {
+						if (found[0] == null) {
+							found[0] = p;
+						}
+						found.notifyAll();
+					}
+				}
+			}
+
+			public void lostPeer(Peer p) {
+			}
+		};
+		finder.addPeerListener(listener);
+		finder.startSearching();
+		try {
+			synchronized (found) {
+				while (found[0] == null) {
+					found.wait();
+				}
+				return found[0];
+			}
+		} finally {
+			finder.stopSearching();
+			finder.removePeerListener(listener);
+		}
+	}
+
+	/**
+	 * @return what we register with a PeerFinder: our role, region, load and
+	 *         the port we listen on, if any.
+	 */
+	Map<String, String> describe(String role, int port) {
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		attributes.put(PeerFinder.ROLE, role);
+		attributes.put(PeerFinder.REGION, engine.tlx + "," + engine.tly + "," + engine.width + ","
+				+ engine.height);
+		attributes.put(PeerFinder.LOAD, Integer.toString(load()));
+		if (port >= 0) {
+			attributes.put(PeerFinder.PORT, Integer.toString(port));
+		}
+		return attributes;
+	}
+
+	/*
+	 * Our agents, counting those handed to us that we have not placed yet.
+	 */
+	private int load() {
+		int load = engine.countAgents();
+		synchronized (engine.recvdMessages) {
+			for (Message m : engine.recvdMessages) {
+				if (m.messageType == Message.SENDAGENT && m.sign) {
+					load++;
+				}
+			}
+		}
+		return load;
+	}
+
+	/**
+	 * Tells every engine who owns what now.
+	 * 
+	 * @param start
+	 *            whether everyone we expect has joined, so they can start.
+	 */
+	private void sendRegionMap(boolean start) {
+		Message.RegionMap map = new Message.RegionMap();
+		map.start = start;
+		map.regions.add(Handover.region(engine));
+		for (RemoteEngine re : engine.peerList) {
+			Message.Region r = Handover.region(re);
+			r.host = re.listenHost;
+			r.port = re.listenPort;
+			map.regions.add(r);
+		}
+		for (RemoteEngine re : engine.peerList) {
+			Message.sendRegionMap(re.out, map);
+		}
+	}
+
+	/**
+	 * Waits until the first engine says everyone has joined, then takes on
+	 * its final layout.
+	 */
+	void awaitStart() throws InterruptedException {
+		Message.RegionMap map;
+		synchronized (engine.handover.regionLock) {
+			while (engine.handover.regionMap == null || !engine.handover.regionMap.start) {
+				engine.handover.regionLock.wait();
+			}
+			map = engine.handover.regionMap;
+			// The layouts so far were all the first engine's.
+			engine.handover.maps.clear();
+			engine.handover.mapSenders.clear();
+		}
+		for (Message.Region r : map.regions) {
+			engine.timeTable.expect(r.getID());
+			RemoteEngine re = engine.getPeer(r.getID());
+			if (re != null) {
+				re.setCoordinates(r.tlx, r.tly, r.width, r.height);
+			}
+		}
+	}
+
+	/**
+	 * Links us directly to every other helper in the final layout, so that
+	 * nothing between helpers goes through the first engine. We connect to
+	 * those that joined before us and accept the rest, so each pair is
+	 * linked once. Connecting never waits on the other side's accepting, so
+	 * helpers doing this at the same time cannot deadlock.
+	 */
+	void connectPeers(ServerSocket listener) throws Exception {
+		List<Message.Region> regions;
+		synchronized (engine.handover.regionLock) {
+			regions = engine.handover.regionMap.regions;
+		}
+		int me = 0;
+		while (!regions.get(me).getID().equals(engine.getID())) {
+			me++;
+		}
+		// The first engine is linked to everyone already.
+		for (int k = 1; k < me; k++) {
+			Message.Region r = regions.get(k);
+			Socket socket = new Socket(r.host, r.port);
+			socket.setTcpNoDelay(true);
+			RemoteEngine re = new RemoteEngine(socket, engine);
+			Message.PeerHello hello = new Message.PeerHello();
+			hello.tlx = engine.tlx;
+			hello.tly = engine.tly;
+			long token = ShmRing.newToken();
+			File shm = ShmRing.create(token);
+			ShmRing[] rings = shm == null ? null : ShmRing.map(shm.getPath(),
+					token, true);
+			if (rings != null) {
+				hello.shmPath = shm.getPath();
+				hello.token = token;
+			}
+			Message.sendPeerHello(re.out, hello);
+			boolean useShm = Message.recvPeerHelloResp(re.in);
+			if (shm != null) {
+				shm.delete();
+			}
+			if (useShm) {
+				re.useRings(rings);
+			}
+			addPeer(re, r);
+		}
+		for (int k = me + 1; k < regions.size(); k++) {
+			Socket socket = listener.accept();
+			socket.setTcpNoDelay(true);
+			RemoteEngine re = new RemoteEngine(socket, engine);
+			if (re.in.read() != Message.PEERHELLO) {
+				throw new Exception("Expected peer hello.");
+			}
+			Message.PeerHello hello = Message.recvPeerHello(re.in);
+			ShmRing[] rings = ShmRing.map(hello.shmPath, hello.token, false);
+			Message.sendPeerHelloResp(re.out, rings != null);
+			if (rings != null) {
+				re.useRings(rings);
+			}
+			Message.Region r = null;
+			for (Message.Region other : regions) {
+				if (other.tlx == hello.tlx && other.tly == hello.tly) {
+					r = other;
+				}
+			}
+			if (r == null) {
+				throw new Exception("Hello from an engine not in the map: "
+						+ hello.tlx + "," + hello.tly);
+			}
+			addPeer(re, r);
+		}
+		listener.close();
+	}
+
+	private void addPeer(RemoteEngine re, Message.Region r) {
+		re.setCoordinates(r.tlx, r.tly, r.width, r.height);
+		engine.timeTable.expect(re.getID());
+		engine.peerList.add(re);
+		re.listen();
+	}
+}
@@ -0,0 +1,477 @@
+package engine;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+
+import net.DelayProxy;
+import net.LocalPeerFinder;
+import net.PeerFinder;
+import net.MemoryChannel;
+import world.Agent;
+import world.impl.Rabbit;
+
+/**
+ * Runs several LocalEngine partitions in one JVM, connected to each other
+ * over loopback sockets exactly as separate machines would be, and writes a
+ * JSON report of how fast they got to the stop turn. With --memory the
+ * partitions are connected by MemoryChannels instead, which is how to use
+ * the cores of one big machine.
+ *
+ * The world is cut into vertical strips, one per partition, and each strip
+ * is connected to the strips to its left and right (the world is a torus).
+ * Agents (Rabbits unless --agent says otherwise) are scattered over the
+ * world from a fixed seed so that runs are repeatable.
+ *
+ * Stragglers are rare on loopback, so every link can be routed through a
+ * DelayProxy to give it the latency, jitter and bandwidth of a real network.
+ *
+ * With --admit the world is not cut into strips. Instead every agent starts
+ * on the first partition, and the rest find it through a LocalPeerFinder
+ * and join it as helpers, the way a run across machines starts.
+ */
+public class Benchmark {
+
+	int partitions = 2;
+	int globalWidth = 40;
+	int globalHeight = 40;
+	int agents = 100;
+	int turns = 100;
+	long seed = 1;
+	String agentClass = Rabbit.class.getName();
+	int window = OptimismWindow.DEFAULT_WINDOW;
+	boolean conservative = false;
+	int haloWidth = 0;
+	boolean sparse = false;
+	boolean memory = false;
+	long latency = 0;
+	long jitter = 0;
+	long bandwidth = 0;
+	// Whether the engines log as they run.
+	boolean verbose = false;
+	// Whether the partitions join the first through admission instead of
+	// being given strips.
+	boolean admit = false;
+
+	LocalEngine[] engines;
+	Thread[] threads;
+	ArrayList<DelayProxy> proxies = new ArrayList<DelayProxy>();
+
+	public Benchmark() {
+	}
+
+	/**
+	 * Builds the partitions, connects neighbouring ones and places the agents.
+	 */
+	public void setUp() throws Exception {
+		engines = new LocalEngine[partitions];
+		if (admit) {
+			admit();
+			return;
+		}
+		for (int i = 0; i < partitions; i++) {
+			int tlx = stripStart(i);
+			engines[i] = new LocalEngine(tlx, 0, stripStart(i + 1) - tlx,
+					globalHeight, globalWidth, globalHeight, false, sparse);
+			configure(engines[i]);
+			engines[i].setOrdinal(i);
+		}
+		// With two partitions the left and right neighbours are the same
+		// engine, so there is only one link.
+		int links = partitions == 2 ? 1 : partitions;
+		for (int i = 0; i < links && partitions > 1; i++) {
+			connect(engines[i], engines[(i + 1) % partitions]);
+		}
+		for (LocalEngine e : engines) {
+			for (RemoteEngine re : e.peerList) {
+				re.listen();
+			}
+		}
+		placeAgents();
+	}
+
+	private void configure(LocalEngine engine) {
+		engine.setStopTurn(turns);
+		engine.setShowGrid(false);
+		engine.setVerbose(verbose);
+		engine.setWindow(window);
+		engine.setConservative(conservative);
+		engine.setHaloWidth(haloWidth);
+	}
+
+	private void placeAgents() throws Exception {
+		Random random = new Random(seed);
+		Class<?> c = Class.forName(agentClass);
+		for (int i = 0; i < agents; i++) {
+			int x = random.nextInt(globalWidth);
+			int y = random.nextInt(globalHeight);
+			owner(x, y).placeAgent(x, y, (Agent) c.getDeclaredConstructor()
+					.newInstance());
+		}
+	}
+
+	/*
+	 * Places every agent on the first partition, which divides the world by
+	 * load among itself and the others as they join it.
+	 */
+	private void admit() throws Exception {
+		final LocalEngine first = new LocalEngine(0, 0, globalWidth,
+				globalHeight, globalWidth, globalHeight, false, sparse);
+		engines[0] = first;
+		first.setVerbose(verbose);
+		first.setConservative(conservative);
+		placeAgents();
+
+		final ServerSocket serverSocket = new ServerSocket(0, partitions,
+				InetAddress.getByName("127.0.0.1"));
+		final Exception[] failed = new Exception[1];
+		final PeerFinder[] finders = new PeerFinder[partitions];
+		for (int i = 0; i < partitions; i++) {
+			finders[i] = new LocalPeerFinder();
+		}
+		Thread[] joins = new Thread[partitions];
+		joins[0] = new Thread(new Runnable() {
+			public void run() {
+				try {
+					first.getAdmission().coordinate(serverSocket,
+							partitions - 1, finders[0]);
+				} catch (Exception e) {
+					failed[0] = e;
+				}
+			}
+		}, "coordinator");
+		for (int i = 1; i < partitions; i++) {
+			final int k = i;
+			joins[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						engines[k] = Admission.join(finders[k], false,
+								sparse, conservative);
+					} catch (Exception e) {
+						failed[0] = e;
+					}
+				}
+			}, "helper-" + i);
+		}
+		for (Thread t : joins) {
+			t.start();
+		}
+		for (Thread t : joins) {
+			t.join();
+		}
+		serverSocket.close();
+		// Nobody else joins this run.
+		for (PeerFinder f : finders) {
+			f.unregister();
+		}
+		if (failed[0] != null) {
+			throw failed[0];
+		}
+		for (LocalEngine e : engines) {
+			configure(e);
+		}
+	}
+
+	private int stripStart(int i) {
+		return (int) ((long) globalWidth * i / partitions);
+	}
+
+	private LocalEngine owner(int x, int y) {
+		for (LocalEngine e : engines) {
+			if (e != null && e.hasCell(x, y)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private boolean delayed() {
+		return latency > 0 || jitter > 0 || bandwidth > 0;
+	}
+
+	private void connect(LocalEngine a, LocalEngine b) throws IOException {
+		if (memory) {
+			MemoryChannel toB = new MemoryChannel();
+			MemoryChannel toA = new MemoryChannel();
+			addPeer(a, b, new RemoteEngine(toB, toA, a));
+			addPeer(b, a, new RemoteEngine(toA, toB, b));
+			return;
+		}
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		ServerSocket serverSocket = new ServerSocket(0, 1, loopback);
+		int port = serverSocket.getLocalPort();
+		if (delayed()) {
+			DelayProxy proxy = new DelayProxy(new InetSocketAddress(loopback,
+					port), latency, jitter, bandwidth, seed + proxies.size());
+			proxies.add(proxy);
+			port = proxy.start(0);
+		}
+		Socket aSocket = new Socket(loopback, port);
+		Socket bSocket = serverSocket.accept();
+		serverSocket.close();
+		aSocket.setTcpNoDelay(true);
+		bSocket.setTcpNoDelay(true);
+
+		addPeer(a, b, new RemoteEngine(aSocket, a));
+		addPeer(b, a, new RemoteEngine(bSocket, b));
+	}
+
+	private static void addPeer(LocalEngine engine, LocalEngine other,
+			RemoteEngine re) {
+		re.setCoordinates(other.tlx, other.tly, other.width, other.height);
+		engine.peerList.add(re);
+	}
+
+	/**
+	 * Runs every partition on its own thread until all of them have committed
+	 * the stop turn, then shuts them down.
+	 *
+	 * @return the wall time in milliseconds.
+	 */
+	public long run() throws InterruptedException {
+		threads = new Thread[partitions];
+		for (int i = 0; i < partitions; i++) {
+			final LocalEngine engine = engines[i];
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					engine.go();
+				}
+			}, "engine-" + i);
+		}
+		long start = System.currentTimeMillis();
+		for (Thread t : threads) {
+			t.start();
+		}
+		awaitQuiescence();
+		long wall = System.currentTimeMillis() - start;
+		for (LocalEngine e : engines) {
+			e.running = false;
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (LocalEngine e : engines) {
+			e.shutdown();
+		}
+		for (DelayProxy p : proxies) {
+			p.close();
+		}
+		return wall;
+	}
+
+	/*
+	 * Each engine's idle check only looks at that engine, and the engines are
+	 * checked one after another, so a message can slip past. Require two
+	 * consecutive passes in which everyone is idle and no engine received or
+	 * executed anything in between.
+	 */
+	private void awaitQuiescence() throws InterruptedException {
+		long previous = -1;
+		while (true) {
+			Thread.sleep(10);
+			boolean idle = true;
+			for (LocalEngine e : engines) {
+				idle &= e.isIdle();
+			}
+			long activity = activity();
+			if (idle && activity == previous) {
+				return;
+			}
+			previous = idle ? activity : -1;
+		}
+	}
+
+	private long activity() {
+		long total = 0;
+		for (LocalEngine e : engines) {
+			total += e.getStats().getMessagesReceived()
+					+ e.getStats().getTurnsExecuted();
+		}
+		return total;
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	public void report(Writer w, long wall) throws IOException {
+		long executed = 0;
+		long rollbacks = 0;
+		long rolledBack = 0;
+		int finalAgents = 0;
+		long poolHits = 0;
+		long poolMisses = 0;
+		for (LocalEngine e : engines) {
+			finalAgents += e.countAgents();
+			poolHits += e.getAgentPool().getHits();
+			poolMisses += e.getAgentPool().getMisses();
+			executed += e.getStats().getTurnsExecuted();
+			rollbacks += e.getStats().getRollbacks();
+			rolledBack += e.getStats().getRolledBackTurns();
+		}
+		long committed = (long) turns * partitions;
+		double seconds = wall / 1000.0;
+		w.write("{\n");
+		w.write("  \"partitions\": " + partitions + ",\n");
+		w.write("  \"width\": " + globalWidth + ",\n");
+		w.write("  \"height\": " + globalHeight + ",\n");
+		w.write("  \"agentClass\": \"" + agentClass + "\",\n");
+		w.write("  \"agents\": " + agents + ",\n");
+		w.write("  \"finalAgents\": " + finalAgents + ",\n");
+		w.write("  \"turns\": " + turns + ",\n");
+		w.write("  \"sync\": \"" + (conservative ? "conservative" : "optimistic")
+				+ "\",\n");
+		w.write("  \"haloWidth\": " + haloWidth + ",\n");
+		w.write("  \"sparse\": " + sparse + ",\n");
+		w.write("  \"transport\": \"" + (memory ? "memory" : "tcp") + "\",\n");
+		w.write("  \"latencyMillis\": " + latency + ",\n");
+		w.write("  \"jitterMillis\": " + jitter + ",\n");
+		w.write("  \"bandwidth\": " + bandwidth + ",\n");
+		w.write("  \"wallMillis\": " + wall + ",\n");
+		w.write("  \"turnsPerSec\": " + (turns / seconds) + ",\n");
+		w.write("  \"partitionTurnsPerSec\": " + (committed / seconds) + ",\n");
+		w.write("  \"executedTurns\": " + executed + ",\n");
+		w.write("  \"rollbacks\": " + rollbacks + ",\n");
+		w.write("  \"rolledBackTurns\": " + rolledBack + ",\n");
+		w.write("  \"efficiency\": " + ((double) committed / executed) + ",\n");
+		w.write("  \"poolHitRate\": "
+				+ (poolHits + poolMisses == 0 ? 0.0 : (double) poolHits
+						/ (poolHits + poolMisses)) + ",\n");
+		w.write("  \"peakHeapBytes\": " + peakHeap() + ",\n");
+		w.write("  \"engines\": [\n");
+		for (int i = 0; i < partitions; i++) {
+			LocalEngine e = engines[i];
+			EngineStats s = e.getStats();
+			w.write("    {\"id\": \"" + e.getID() + "\", \"executedTurns\": "
+					+ s.getTurnsExecuted() + ", \"rollbacks\": "
+					+ s.getRollbacks() + ", \"maxRollbackDepth\": "
+					+ s.getMaxRollbackDepth() + ", \"window\": "
+					+ s.getWindow() + ", \"throttledMillis\": "
+					+ s.getThrottledMillis() + ", \"backpressureMillis\": "
+					+ s.getBackpressureMillis() + ", \"poolHitRate\": "
+					+ e.getAgentPool().getHitRate() + ", \"peers\": [");
+			for (int j = 0; j < e.peerList.size(); j++) {
+				RemoteEngine re = e.peerList.get(j);
+				w.write((j == 0 ? "" : ", ") + "{\"id\": \"" + re.getID()
+						+ "\", \"bytesSent\": " + re.getBytesSent()
+						+ ", \"bytesReceived\": " + re.getBytesReceived()
+						+ ", \"maxQueuedBytes\": " + re.getMaxQueuedBytes() + "}");
+			}
+			w.write("]}" + (i + 1 < partitions ? "," : "") + "\n");
+		}
+		w.write("  ]\n");
+		w.write("}\n");
+		w.flush();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: Benchmark: [--partitions] n [--size] width height "
+				+ "[--agents] n [--agent] class [--turns] n [--seed] n [--window] turns "
+				+ "[--sync] optimistic|conservative [--halo] width [--sparse] [--memory] [--latency] ms [--jitter] ms "
+				+ "[--bandwidth] bytesPerSecond [--admit] [--out] file [--verbose]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) {
+		Benchmark b = new Benchmark();
+		String outFile = null;
+
+		int i = 0;
+		try {
+			while (i < args.length) {
+				String arg = args[i++];
+				if (arg.equals("--partitions")) {
+					b.partitions = Integer.parseInt(args[i++]);
+				} else if (arg.equals("--size")) {
+					b.globalWidth = Integer.parseInt(args[i++]);
+					b.globalHeight = Integer.parseInt(args[i++]);
+				} else if (arg.equals("--agents")) {
+					b.agents = Integer.parseInt(args[i++]);
+				} else if (arg.equals("--agent")) {
+					b.agentClass = args[i++];
+				} else if (arg.equals("--turns")) {
+					b.turns = Integer.parseInt(args[i++]);
+				} else if (arg.equals("--seed")) {
+					b.seed = Long.parseLong(args[i++]);
+				} else if (arg.equals("--window")) {
+					b.window = Integer.parseInt(args[i++]);
+				} else if (arg.equals("--sync")) {
+					b.conservative = args[i++].equals("conservative");
+				} else if (arg.equals("--halo")) {
+					b.haloWidth = Integer.parseInt(args[i++]);
+				} else if (arg.equals("--sparse")) {
+					b.sparse = true;
+				} else if (arg.equals("--memory")) {
+					b.memory = true;
+				} else if (arg.equals("--latency")) {
+					b.latency = Long.parseLong(args[i++]);
+				} else if (arg.equals("--jitter")) {
+					b.jitter = Long.parseLong(args[i++]);
+				} else if (arg.equals("--bandwidth")) {
+					b.bandwidth = Long.parseLong(args[i++]);
+				} else if (arg.equals("--admit")) {
+					b.admit = true;
+				} else if (arg.equals("--out")) {
+					outFile = args[i++];
+				} else if (arg.equals("--verbose")) {
+					b.verbose = true;
+				} else {
+					usage();
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage();
+		}
+		if (b.partitions < 1 || b.partitions > b.globalWidth) {
+			System.err.println("--partitions must be between 1 and the width");
+			System.exit(1);
+		}
+		if (b.memory && b.delayed()) {
+			System.err.println("--latency, --jitter and --bandwidth need sockets, not --memory");
+			System.exit(1);
+		}
+		if (b.admit && (b.memory || b.delayed())) {
+			System.err.println("--admit links the partitions itself, without --memory or delays");
+			System.exit(1);
+		}
+
+		try {
+			b.setUp();
+			resetPeakHeap();
+			long wall = b.run();
+			Writer w = outFile == null ? new OutputStreamWriter(System.out)
+					: new FileWriter(outFile);
+			b.report(w, wall);
+			if (outFile != null) {
+				w.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
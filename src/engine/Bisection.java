@@ -0,0 +1,181 @@
+package engine;
+
+import java.util.ArrayList;
+
+import net.Message.Region;
+
+/**
+ * Divides a region among a number of engines so that each gets about the
+ * same weight of agents, by cutting it in two across its longer side, with
+ * as many engines' worth of weight on each side as engines go there, and
+ * doing the same to each half. Every part is a rectangle, and the first
+ * part keeps the region's top left corner.
+ */
+public class Bisection {
+
+	private final Region world;
+	// Where the weight is, one entry per occupied cell.
+	private int[] xs = new int[64];
+	private int[] ys = new int[64];
+	private double[] weights = new double[64];
+	private int count = 0;
+
+	public Bisection(Region world) {
+		this.world = world;
+	}
+
+	/**
+	 * Adds weight to a cell, such as the cost of the agents in it.
+	 */
+	public void add(int x, int y, double weight) {
+		if (count == xs.length) {
+			int n = count * 2;
+			int[] x2 = new int[n];
+			int[] y2 = new int[n];
+			double[] w2 = new double[n];
+			System.arraycopy(xs, 0, x2, 0, count);
+			System.arraycopy(ys, 0, y2, 0, count);
+			System.arraycopy(weights, 0, w2, 0, count);
+			xs = x2;
+			ys = y2;
+			weights = w2;
+		}
+		xs[count] = x;
+		ys[count] = y;
+		weights[count] = weight;
+		count++;
+	}
+
+	/**
+	 * @return the region cut into this many parts. With no weight at all the
+	 *         parts are about the same size.
+	 */
+	public ArrayList<Region> split(int parts) {
+		if ((long) world.width * world.height < parts) {
+			throw new IllegalStateException("Region too small to split "
+					+ parts + " ways");
+		}
+		ArrayList<Region> result = new ArrayList<Region>(parts);
+		int[] all = new int[count];
+		for (int i = 0; i < count; i++) {
+			all[i] = i;
+		}
+		split(world, parts, all, count, result);
+		return result;
+	}
+
+	/*
+	 * Splits r, whose cells with weight are the first n entries of cells,
+	 * adding its parts to result in order. The cut goes whichever way
+	 * divides the weight more evenly, or across the longer side if that
+	 * makes no difference, so that the parts stay compact.
+	 */
+	private void split(Region r, int parts, int[] cells, int n,
+			ArrayList<Region> result) {
+		if (parts == 1) {
+			result.add(r);
+			return;
+		}
+		int first = parts / 2;
+		boolean across = r.width >= r.height;
+		int at = cut(r, across, first, parts, cells, n);
+		int other = cut(r, !across, first, parts, cells, n);
+		if (other > 0
+				&& (at < 0 || miss(r, !across, other, first, parts, cells, n) < miss(
+						r, across, at, first, parts, cells, n))) {
+			across = !across;
+			at = other;
+		}
+		if (at < 0) {
+			throw new IllegalStateException("Region too small to split "
+					+ parts + " ways");
+		}
+
+		Region near;
+		Region far;
+		if (across) {
+			near = new Region(r.tlx, r.tly, at, r.height);
+			far = new Region(r.tlx + at, r.tly, r.width - at, r.height);
+		} else {
+			near = new Region(r.tlx, r.tly, r.width, at);
+			far = new Region(r.tlx, r.tly + at, r.width, r.height - at);
+		}
+		// Share the cells out between the two sides.
+		int[] nearCells = new int[n];
+		int[] farCells = new int[n];
+		int nn = 0;
+		int nf = 0;
+		for (int i = 0; i < n; i++) {
+			int c = cells[i];
+			if (position(r, across, c) < at) {
+				nearCells[nn++] = c;
+			} else {
+				farCells[nf++] = c;
+			}
+		}
+		split(near, first, nearCells, nn, result);
+		split(far, parts - first, farCells, nf, result);
+	}
+
+	/*
+	 * Where to cut r, across or down, to leave first of the parts' share of
+	 * the weight on the near side, or -1 if it cannot be cut that way.
+	 */
+	private int cut(Region r, boolean across, int first, int parts,
+			int[] cells, int n) {
+		int length = across ? r.width : r.height;
+		int breadth = across ? r.height : r.width;
+		// Each side must have a cell for every engine it goes to.
+		int lo = Math.max(1, (first + breadth - 1) / breadth);
+		int hi = length - Math.max(1, (parts - first + breadth - 1) / breadth);
+		if (lo > hi) {
+			return -1;
+		}
+		double[] along = new double[length];
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			int c = cells[i];
+			along[position(r, across, c)] += weights[c];
+			total += weights[c];
+		}
+		int at;
+		if (total <= 0) {
+			at = (int) ((long) length * first / parts);
+		} else {
+			// The cut nearest to where the near side's share runs out.
+			double target = total * first / parts;
+			double before = 0;
+			at = 0;
+			while (at < length && before + along[at] < target) {
+				before += along[at++];
+			}
+			if (at < length
+					&& before + along[at] - target < target - before) {
+				at++;
+			}
+		}
+		return Math.max(lo, Math.min(hi, at));
+	}
+
+	/*
+	 * How far the weight on the near side of a cut is from its share.
+	 */
+	private double miss(Region r, boolean across, int at, int first,
+			int parts, int[] cells, int n) {
+		double near = 0;
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			int c = cells[i];
+			if (position(r, across, c) < at) {
+				near += weights[c];
+			}
+			total += weights[c];
+		}
+		return Math.abs(near - total * first / parts);
+	}
+
+	// How far along r a cell is, across or down.
+	private int position(Region r, boolean across, int c) {
+		return across ? xs[c] - r.tlx : ys[c] - r.tly;
+	}
+}
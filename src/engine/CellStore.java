@@ -0,0 +1,89 @@
+package engine;
+
+import world.LocalCell;
+
+/**
+ * Holds the cells of an engine's region. Cells are grouped into square
+ * tiles of TILE x TILE cells, so that the cells around any cell are close
+ * to it in memory, and every cell has a place in a single order, tile by
+ * tile, that the engine steps them in. Their agents are kept in that order
+ * too, in AgentRanges, and a LocalCell is only a view of its range.
+ */
+public abstract class CellStore implements Iterable<LocalCell> {
+
+	static final int TILE_BITS = 4;
+	static final int TILE = 1 << TILE_BITS;
+	static final int TILE_MASK = TILE - 1;
+
+	final LocalEngine engine;
+	final int tlx;
+	final int tly;
+	final int width;
+	final int height;
+	final int tilesWide;
+
+	CellStore(int tlx, int tly, int width, int height, LocalEngine engine) {
+		this.engine = engine;
+		this.tlx = tlx;
+		this.tly = tly;
+		this.width = width;
+		this.height = height;
+		tilesWide = (width + TILE_MASK) >> TILE_BITS;
+	}
+
+	/**
+	 * @return the cell at these global coordinates, which must be in our
+	 *         region, creating it if need be.
+	 */
+	public abstract LocalCell get(int x, int y);
+
+	/**
+	 * @return the cell at these global coordinates, or null if it does not
+	 *         exist because nobody has been there since it was last released.
+	 */
+	public LocalCell peek(int x, int y) {
+		return get(x, y);
+	}
+
+	public LocalEngine getEngine() {
+		return engine;
+	}
+
+	public boolean isSparse() {
+		return false;
+	}
+
+	/**
+	 * Called when a cell gains its first agent.
+	 */
+	void occupied(LocalCell cell) {
+	}
+
+	/**
+	 * Called when a cell loses its last agent.
+	 */
+	void emptied(LocalCell cell) {
+	}
+
+	/**
+	 * Frees what is no longer occupied. Only safe between turns, once no
+	 * snapshot of an empty cell can still be read.
+	 */
+	void release() {
+	}
+
+	/*
+	 * Where the cell x across and y down from our top left corner comes in
+	 * the order: the tile number, then the row within the tile, then the
+	 * column.
+	 */
+	long order(int x, int y) {
+		long tile = (long) (y >> TILE_BITS) * tilesWide + (x >> TILE_BITS);
+		return (tile << (2 * TILE_BITS)) | offset(x, y);
+	}
+
+	// Where a cell is within its tile.
+	static int offset(int x, int y) {
+		return ((y & TILE_MASK) << TILE_BITS) | (x & TILE_MASK);
+	}
+}
@@ -0,0 +1,318 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.Message.Region;
+import world.Agent;
+import world.LocalCell;
+
+/**
+ * The checkpoints of a run: every so many turns each engine stops at the
+ * same turn, waits until every engine has finished it, and writes its
+ * region to a snapshot in a directory of its own machine's. No message is
+ * in flight then, as every one sent up to that turn has been applied and
+ * no engine has started the next, so the snapshots alone are enough to
+ * carry on from. To restart, gather the files in one directory and start
+ * the first engine from them.
+ *
+ * Each file is named checkpoint-Turn-EngineID.snap. An engine keeps its
+ * last two, so that one whole set is left however the run stops. It also
+ * deletes the older files of engines that have left the run, which no one
+ * else would.
+ *
+ * An instance is one engine's side of this: when it stops to write, and
+ * the snapshot of its region it loads at the start or dumps at its stop
+ * turn. The static methods deal with the files of the whole run.
+ */
+public class Checkpoint {
+
+	static final String PREFIX = "checkpoint-";
+	static final String SUFFIX = ".snap";
+
+	final LocalEngine engine;
+	// Where to write a checkpoint every so many turns, if anywhere, the
+	// next turn to write one at, and the last turn we wrote one at.
+	File dir;
+	int every = 0;
+	int next = Integer.MAX_VALUE;
+	int written = -1;
+	// Where to write a snapshot once the stop turn is committed, if
+	// anywhere.
+	File dumpFile;
+	boolean dumped = false;
+
+	Checkpoint(LocalEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Writes a checkpoint to the directory every so many turns. Every engine
+	 * in the run must be given the same number of turns.
+	 */
+	public void setEvery(File dir, int every) {
+		dir.mkdirs();
+		this.dir = dir;
+		this.every = every;
+	}
+
+	public void setDumpFile(File dumpFile) {
+		this.dumpFile = dumpFile;
+	}
+
+	/*
+	 * Works out the first turn to write at, after the one we start from.
+	 */
+	void start() {
+		if (every > 0) {
+			next = (engine.turn / every + 1) * every;
+		}
+	}
+
+	/*
+	 * Whether we are at a turn to checkpoint at and have not written it yet.
+	 */
+	boolean due() {
+		return engine.turn >= next;
+	}
+
+	/*
+	 * Writes the dump and the checkpoint of the turn we are stopped at once
+	 * every engine has finished it.
+	 */
+	void writeCommitted() {
+		int turn = engine.turn;
+		if (turn >= engine.stopTurn && dumpFile != null && !dumped
+				&& engine.committed(engine.stopTurn)) {
+			write(dumpFile);
+			dumped = true;
+		}
+		if (turn >= next && engine.committed(next)) {
+			write();
+			next += every;
+		}
+	}
+
+	/*
+	 * Writes the checkpoint of the turn we are at again after our region
+	 * changed at its end, if we have written one.
+	 */
+	void regionChanged() {
+		if (engine.turn == written) {
+			write();
+		}
+	}
+
+	/**
+	 * Writes our agents as they are now to a snapshot. Only safe between
+	 * turns.
+	 */
+	public void write(File file) {
+		try {
+			Snapshot.write(file, engine.turn, engine.globalWidth,
+					engine.globalHeight, Handover.region(engine),
+					engine.activeCells);
+			if (engine.verbose) {
+				System.out.println("Wrote " + engine.countAgents()
+						+ " agents at turn " + engine.turn + " to " + file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Writes our region as it is at the end of this turn, which every engine
+	 * has finished, to the checkpoint of this turn, and deletes ours and
+	 * those of engines no longer in the run from before the last one.
+	 */
+	private void write() {
+		write(file(dir, engine.turn, engine.getID()));
+		written = engine.turn;
+		HashSet<String> others = new HashSet<String>();
+		for (RemoteEngine re : engine.peerList) {
+			others.add(re.getID());
+		}
+		prune(dir, engine.getID(), others, engine.turn - every);
+	}
+
+	/**
+	 * Places the agents in our region from a snapshot, and starts from its
+	 * turn. Several snapshots of the same turn can be loaded, such as the
+	 * ones each engine of a run wrote. Only called before we start running.
+	 */
+	public void load(File file) throws IOException {
+		Snapshot snapshot = Snapshot.open(file);
+		try {
+			if (snapshot.getGlobalWidth() != engine.globalWidth
+					|| snapshot.getGlobalHeight() != engine.globalHeight) {
+				throw new IOException(file + " is of a "
+						+ snapshot.getGlobalWidth() + "x"
+						+ snapshot.getGlobalHeight() + " world");
+			}
+			if (!engine.activeCells.isEmpty()
+					&& snapshot.getTurn() != engine.turn) {
+				throw new IOException(file + " is of turn "
+						+ snapshot.getTurn() + ", not " + engine.turn);
+			}
+			long loaded = snapshot.load(engine);
+			engine.turn = snapshot.getTurn();
+			if (engine.verbose) {
+				System.out.println("Loaded " + loaded + " agents at turn "
+						+ engine.turn + " from " + file);
+			}
+		} finally {
+			snapshot.close();
+		}
+		// Number new agents after the ones already there, and give helpers
+		// ordinals that no agent has yet.
+		for (LocalCell cell : engine.activeCells) {
+			for (Agent a : cell.getAgents()) {
+				int o = (int) (a.getId() >>> LocalEngine.ORDINAL_SHIFT);
+				if (o == engine.ordinal) {
+					long n = a.getId() & ((1L << LocalEngine.ORDINAL_SHIFT) - 1);
+					engine.agentCounter = Math.max(engine.agentCounter, n);
+				} else {
+					engine.nextOrdinal = Math.max(engine.nextOrdinal, o + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the file an engine writes its checkpoint of a turn to.
+	 */
+	public static File file(File dir, int turn, String id) {
+		return new File(dir, PREFIX + turn + "-" + id + SUFFIX);
+	}
+
+	/*
+	 * The turn of a checkpoint file, or -1 if it is not one.
+	 */
+	private static int turn(File file) {
+		String name = file.getName();
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+			return -1;
+		}
+		int end = name.indexOf('-', PREFIX.length());
+		if (end < 0) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * The engine ID of a checkpoint file.
+	 */
+	private static String id(File file) {
+		String name = file.getName();
+		int start = name.indexOf('-', PREFIX.length()) + 1;
+		return name.substring(start, name.length() - SUFFIX.length());
+	}
+
+	/**
+	 * Deletes an engine's checkpoints from before a turn, along with those of
+	 * any engine other than it and the others still in the run. Every engine
+	 * is linked to every other, so the others are its peers.
+	 */
+	public static void prune(File dir, String id, Set<String> others,
+			int before) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			int t = turn(f);
+			if (t >= 0 && t < before
+					&& (id(f).equals(id) || !others.contains(id(f)))) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the files of the latest checkpoint in the directory whose
+	 *         regions cover the whole world once each, as one that was
+	 *         still being written when the run stopped does not.
+	 */
+	public static ArrayList<File> latest(File dir, int globalWidth,
+			int globalHeight) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException(dir + " is not a directory");
+		}
+		TreeMap<Integer, ArrayList<File>> byTurn = new TreeMap<Integer, ArrayList<File>>(
+				Collections.reverseOrder());
+		for (File f : files) {
+			int t = turn(f);
+			if (t >= 0) {
+				ArrayList<File> set = byTurn.get(t);
+				if (set == null) {
+					set = new ArrayList<File>();
+					byTurn.put(t, set);
+				}
+				set.add(f);
+			}
+		}
+		for (ArrayList<File> set : byTurn.values()) {
+			if (covers(set, globalWidth, globalHeight)) {
+				return set;
+			}
+		}
+		throw new IOException("No whole checkpoint of a " + globalWidth + "x"
+				+ globalHeight + " world in " + dir);
+	}
+
+	/*
+	 * Whether the regions of a set of checkpoint files cover the world,
+	 * with no cell in two of them.
+	 */
+	private static boolean covers(ArrayList<File> set, int globalWidth,
+			int globalHeight) {
+		ArrayList<Region> regions = new ArrayList<Region>();
+		for (File f : set) {
+			try {
+				Snapshot snapshot = Snapshot.open(f);
+				try {
+					if (snapshot.getGlobalWidth() != globalWidth
+							|| snapshot.getGlobalHeight() != globalHeight) {
+						return false;
+					}
+					regions.add(snapshot.getRegion());
+				} finally {
+					snapshot.close();
+				}
+			} catch (IOException e) {
+				System.err.println("Skipping " + f + ": " + e.getMessage());
+				return false;
+			}
+		}
+		long area = 0;
+		for (int i = 0; i < regions.size(); i++) {
+			Region a = regions.get(i);
+			if (a.width == 0 || a.height == 0) {
+				// An engine that left the run at this turn.
+				continue;
+			}
+			area += (long) a.width * a.height;
+			for (int j = 0; j < i; j++) {
+				Region b = regions.get(j);
+				if (b.width > 0 && b.height > 0
+						&& a.tlx < b.tlx + b.width && b.tlx < a.tlx + a.width
+						&& a.tly < b.tly + b.height && b.tly < a.tly + a.height) {
+					return false;
+				}
+			}
+		}
+		return area == (long) globalWidth * globalHeight;
+	}
+}
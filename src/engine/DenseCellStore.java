@@ -0,0 +1,106 @@
+package engine;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import world.AgentRanges;
+import world.LocalCell;
+
+/**
+ * Every cell of the region, in one flat array in tile order. A cell's place
+ * in the array is worked out from its coordinates with shifts and masks.
+ * The agents of all the cells are in one AgentRanges in the same order.
+ * The array is padded out to whole tiles, and the LocalCell views are made
+ * the first time a cell is asked for.
+ */
+public class DenseCellStore extends CellStore {
+
+	final AgentRanges agents;
+	final LocalCell[] cells;
+
+	public DenseCellStore(int tlx, int tly, int width, int height,
+			LocalEngine engine) {
+		super(tlx, tly, width, height, engine);
+		int tilesHigh = (height + TILE_MASK) >> TILE_BITS;
+		cells = new LocalCell[(tilesWide * tilesHigh) << (2 * TILE_BITS)];
+		agents = new AgentRanges(cells.length);
+	}
+
+	@Override
+	public LocalCell get(int x, int y) {
+		int rx = x - tlx;
+		int ry = y - tly;
+		if (rx < 0 || rx >= width || ry < 0 || ry >= height) {
+			throw new IndexOutOfBoundsException("Cell " + x + ", " + y
+					+ " is not in " + tlx + ", " + tly + " " + width + "x"
+					+ height);
+		}
+		int i = index(rx, ry);
+		// A cell's view is made the first time it is asked for and kept, so
+		// this only allocates once per cell.
+		LocalCell cell = cells[i];
+		if (cell == null) {
+			cell = new LocalCell(x, y, this, agents, i);
+			cell.setStoreIndex(i);
+			cells[i] = cell;
+		}
+		return cell;
+	}
+
+	@Override
+	public LocalCell peek(int x, int y) {
+		// A cell that has never been asked for has never had an agent.
+		return cells[index(x - tlx, y - tly)];
+	}
+
+	// order() in int arithmetic, which is enough for a region this size.
+	private int index(int x, int y) {
+		int tile = (y >> TILE_BITS) * tilesWide + (x >> TILE_BITS);
+		return (tile << (2 * TILE_BITS)) | offset(x, y);
+	}
+
+	/**
+	 * Goes through the cells tile by tile, in the order they are stored,
+	 * making their views as it goes.
+	 */
+	public Iterator<LocalCell> iterator() {
+		return new Iterator<LocalCell>() {
+			int next = advance(0);
+
+			// The first place from i on that is a cell and not padding.
+			private int advance(int i) {
+				while (i < cells.length && (x(i) >= width || y(i) >= height)) {
+					i++;
+				}
+				return i;
+			}
+
+			public boolean hasNext() {
+				return next < cells.length;
+			}
+
+			public LocalCell next() {
+				if (next >= cells.length) {
+					throw new NoSuchElementException();
+				}
+				LocalCell cell = get(tlx + x(next), tly + y(next));
+				next = advance(next + 1);
+				return cell;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	// The coordinates, relative to our top left corner, of the cell at i.
+	private int x(int i) {
+		return ((i >> (2 * TILE_BITS)) % tilesWide << TILE_BITS) | (i & TILE_MASK);
+	}
+
+	private int y(int i) {
+		return ((i >> (2 * TILE_BITS)) / tilesWide << TILE_BITS)
+				| ((i >> TILE_BITS) & TILE_MASK);
+	}
+}
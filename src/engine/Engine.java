@@ -9,6 +9,10 @@ public abstract class Engine {
 	protected int width;
 	protected int height;
 	protected int turn;
+	// Made from the top left corner of the first region the engine is
+	// given, and kept if its region changes, so that it is always known by
+	// the same name.
+	protected String id;
 
 	public abstract Cell findCell(int x, int y);
 
@@ -20,6 +24,7 @@ public abstract class Engine {
 		this.tly = tly;
 		this.width = width;
 		this.height = height;
+		this.id = tlx + "," + tly;
 	}
 
 	public Boolean hasCell(int x, int y) {
@@ -31,10 +36,13 @@ public abstract class Engine {
 		this.tly = tly;
 		this.width = width;
 		this.height = height;
+		if (id == null) {
+			id = tlx + "," + tly;
+		}
 	}
 	
 	public String getID(){
-		return tlx + "," + tly; 
+		return id != null ? id : tlx + "," + tly; 
 	}
 	
 }
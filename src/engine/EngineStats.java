@@ -0,0 +1,115 @@
+package engine;
+
+/**
+ * Runtime counters for a LocalEngine. The engine thread updates these while
+ * it runs; other threads (the GUI, a benchmark driver) can read them at any
+ * time.
+ */
+public class EngineStats {
+
+	private long turnsExecuted;
+	private long rollbacks;
+	private long rolledBackTurns;
+	private int maxRollbackDepth;
+	private int window;
+	private long throttledMillis;
+	private long backpressureMillis;
+	private long messagesSent;
+	private long messagesReceived;
+
+	public synchronized void turnExecuted() {
+		turnsExecuted++;
+	}
+
+	public synchronized void rolledBack(int depth) {
+		rollbacks++;
+		rolledBackTurns += depth;
+		if (depth > maxRollbackDepth) {
+			maxRollbackDepth = depth;
+		}
+	}
+
+	public synchronized void throttled(long millis) {
+		throttledMillis += millis;
+	}
+
+	public synchronized void backpressured(long millis) {
+		backpressureMillis += millis;
+	}
+
+	public synchronized void messageSent() {
+		messagesSent++;
+	}
+
+	public synchronized void messageReceived() {
+		messagesReceived++;
+	}
+
+	public synchronized void setWindow(int window) {
+		this.window = window;
+	}
+
+	public synchronized long getTurnsExecuted() {
+		return turnsExecuted;
+	}
+
+	public synchronized long getRollbacks() {
+		return rollbacks;
+	}
+
+	public synchronized long getRolledBackTurns() {
+		return rolledBackTurns;
+	}
+
+	public synchronized int getMaxRollbackDepth() {
+		return maxRollbackDepth;
+	}
+
+	/** The optimism window currently in force, in turns. */
+	public synchronized int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Total time the engine spent waiting on its peers, either throttled by
+	 * the optimism window or at the conservative end-of-turn barrier.
+	 */
+	public synchronized long getThrottledMillis() {
+		return throttledMillis;
+	}
+
+	/**
+	 * Time the engine spent waiting for its writers to catch up with what it
+	 * had queued for slow peers.
+	 */
+	public synchronized long getBackpressureMillis() {
+		return backpressureMillis;
+	}
+
+	/**
+	 * Messages sent to peers: agents, anti-messages, halos, revisions, and
+	 * queries and their replies. Acks, end-of-turn markers and handover
+	 * messages are not counted.
+	 */
+	public synchronized long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * Messages received from peers, counted the same way as
+	 * getMessagesSent().
+	 */
+	public synchronized long getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "turns=" + turnsExecuted + " rollbacks=" + rollbacks
+				+ " rolledBackTurns=" + rolledBackTurns + " maxDepth="
+				+ maxRollbackDepth + " window=" + window + " throttledMs="
+				+ throttledMillis + " backpressureMs=" + backpressureMillis
+				+ " sent=" + messagesSent + " received="
+				+ messagesReceived;
+	}
+}
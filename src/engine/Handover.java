@@ -0,0 +1,612 @@
+package engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import net.Message;
+import ui.CellGrid;
+import world.Agent;
+import world.LocalCell;
+
+/**
+ * Changes to a LocalEngine's region while it runs: handing a strip of it to
+ * a neighbour, taking one from a neighbour, and leaving the run by handing
+ * over all of it. Every engine stops at the turn of a handover until the
+ * giver has sent its new layout, so that no agent is sent to whoever owned
+ * its cell before, and the giver only hands over once that turn is
+ * committed, so that nothing can roll it back past the change. This also
+ * keeps the latest layout of the world, which the first engine sends as
+ * helpers join.
+ */
+public class Handover {
+
+	// How long a departed engine waits for its peers to hang up.
+	static final long HANG_UP_MILLIS = 10000;
+
+	final LocalEngine engine;
+	// The latest layout of the world from the first engine. Guarded by
+	// regionLock.
+	final Object regionLock = new Object();
+	Message.RegionMap regionMap;
+	// New layouts from our peers and parts of their regions they have
+	// handed us, with who sent each, waiting for the engine thread.
+	// Guarded by regionLock.
+	ArrayList<Message.RegionMap> maps = new ArrayList<Message.RegionMap>();
+	ArrayList<String> mapSenders = new ArrayList<String>();
+	ArrayList<Message.RegionTransfer> transfers = new ArrayList<Message.RegionTransfer>();
+	ArrayList<String> transferSenders = new ArrayList<String>();
+	// The engines handing part of their region over, by ID, and the turns
+	// each has asked us to stop at until it sends its new layout, in order.
+	// Guarded by regionLock.
+	HashMap<String, LinkedList<Integer>> holds = new HashMap<String, LinkedList<Integer>>();
+	// The lowest of those turns.
+	volatile int holdTurn = Integer.MAX_VALUE;
+	// What we have been asked to hand over and to whom, and the turn we are
+	// handing it over at, or -1 until we have told everyone. Guarded by
+	// regionLock.
+	Message.Region giving;
+	String givingTo;
+	int givingTurn = -1;
+	// Whether we have handed over all we had and left the run. Only the
+	// engine thread touches this.
+	boolean departed = false;
+	// The turn at which to leave of our own accord, if any.
+	int leaveTurn = Integer.MAX_VALUE;
+
+	Handover(LocalEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Called by a reader when a peer sends a new layout: the first engine as
+	 * engines join, or one whose region has changed since.
+	 */
+	void regionMap(Message.RegionMap map, String from) {
+		synchronized (regionLock) {
+			regionMap = map;
+			maps.add(map);
+			mapSenders.add(from);
+			regionLock.notifyAll();
+		}
+		engine.wakeUp();
+	}
+
+	/**
+	 * Called by a reader when a peer asks us to stop at a turn until it has
+	 * handed part of its region over and sent its new layout.
+	 */
+	void hold(String from, int turn) {
+		synchronized (regionLock) {
+			LinkedList<Integer> turns = holds.get(from);
+			if (turns == null) {
+				turns = new LinkedList<Integer>();
+				holds.put(from, turns);
+			}
+			turns.add(turn);
+			updateHoldTurn();
+		}
+		engine.wakeUp();
+	}
+
+	/**
+	 * Called by a reader when a peer hands us part of its region.
+	 */
+	void regionTransfer(Message.RegionTransfer t, String from) {
+		synchronized (regionLock) {
+			transfers.add(t);
+			transferSenders.add(from);
+		}
+		engine.wakeUp();
+	}
+
+	// Guarded by regionLock.
+	private void updateHoldTurn() {
+		int min = Integer.MAX_VALUE;
+		for (LinkedList<Integer> turns : holds.values()) {
+			min = Math.min(min, turns.getFirst());
+		}
+		holdTurn = min;
+	}
+
+	// Guarded by regionLock.
+	private void release(String from) {
+		LinkedList<Integer> turns = holds.get(from);
+		turns.removeFirst();
+		if (turns.isEmpty()) {
+			holds.remove(from);
+		}
+		updateHoldTurn();
+	}
+
+	/**
+	 * Hands a strip along one side of our region, with the agents in it, to
+	 * the peer on that side, so that both our regions are still rectangles.
+	 * Every engine we are linked to stops at the same turn while it
+	 * happens, so that no agent is sent to whoever owned its cell before.
+	 * The strip must be as long as the side it is on and as the side of the
+	 * peer's region it borders, and must leave us at least a row or column;
+	 * regions that only meet by wrapping around the world cannot trade.
+	 * Returns at once; go() does the work.
+	 */
+	public void giveRegion(Message.Region r, String to) {
+		RemoteEngine re = engine.getPeer(to);
+		if (re == null) {
+			throw new IllegalArgumentException(to + " is not a peer");
+		}
+		Message.Region mine = remainder(region(engine), r);
+		if (mine == null || mine.width == 0 || mine.height == 0
+				|| union(region(re), r) == null) {
+			throw new IllegalArgumentException("Cannot give " + r.tlx + ","
+					+ r.tly + " " + r.width + "x" + r.height + " to " + to);
+		}
+		queueHandover(r, to);
+	}
+
+	/**
+	 * Hands our whole region to a peer whose region shares a whole side with
+	 * ours, the smallest if there are several, then leaves the run: our
+	 * peers forget us, and go() returns once they have all hung up. Every
+	 * engine next to us must be linked to that peer too, as they are when
+	 * every engine is linked to every other, as in a run that engines join.
+	 * Returns at once.
+	 */
+	public void leave() {
+		Message.Region mine = region(engine);
+		RemoteEngine to = null;
+		for (RemoteEngine re : engine.peerList) {
+			if (union(region(re), mine) != null
+					&& (to == null || (long) re.width * re.height < (long) to.width
+							* to.height)) {
+				to = re;
+			}
+		}
+		if (to == null) {
+			throw new IllegalStateException(
+					"No peer borders the whole of one side of our region");
+		}
+		queueHandover(mine, to.getID());
+	}
+
+	private void queueHandover(Message.Region r, String to) {
+		synchronized (regionLock) {
+			if (giving != null) {
+				throw new IllegalStateException(
+						"Already handing a region over");
+			}
+			giving = r;
+			givingTo = to;
+		}
+		engine.wakeUp();
+	}
+
+	/*
+	 * What is left of a once r is taken off it, or null if that is not a
+	 * rectangle because r is not a strip along one side of a.
+	 */
+	private static Message.Region remainder(Message.Region a, Message.Region r) {
+		if (r.width <= 0 || r.height <= 0) {
+			return null;
+		}
+		if (r.tly == a.tly && r.height == a.height) {
+			if (r.tlx == a.tlx && r.width <= a.width) {
+				return new Message.Region(a.tlx + r.width, a.tly, a.width
+						- r.width, a.height);
+			}
+			if (r.tlx > a.tlx && r.tlx + r.width == a.tlx + a.width) {
+				return new Message.Region(a.tlx, a.tly, a.width - r.width,
+						a.height);
+			}
+		}
+		if (r.tlx == a.tlx && r.width == a.width) {
+			if (r.tly == a.tly && r.height <= a.height) {
+				return new Message.Region(a.tlx, a.tly + r.height, a.width,
+						a.height - r.height);
+			}
+			if (r.tly > a.tly && r.tly + r.height == a.tly + a.height) {
+				return new Message.Region(a.tlx, a.tly, a.width, a.height
+						- r.height);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * a and r together, or null if they are not a rectangle. They must not
+	 * overlap.
+	 */
+	private static Message.Region union(Message.Region a, Message.Region r) {
+		int left = Math.min(a.tlx, r.tlx);
+		int top = Math.min(a.tly, r.tly);
+		int right = Math.max(a.tlx + a.width, r.tlx + r.width);
+		int bottom = Math.max(a.tly + a.height, r.tly + r.height);
+		if ((long) (right - left) * (bottom - top) != (long) a.width
+				* a.height + (long) r.width * r.height) {
+			return null;
+		}
+		return new Message.Region(left, top, right - left, bottom - top);
+	}
+
+	/*
+	 * Starts handing over what we have been asked to, by asking our peers to
+	 * stop at the turn we are at. Then, if a handover has us stopped at a
+	 * turn we are past, goes back to it, takes on whatever regions and
+	 * layouts have come for the turn we are at, and hands ours over once
+	 * everyone has finished it.
+	 */
+	void handOver() {
+		int turn = engine.turn;
+		if (turn >= leaveTurn && !departed) {
+			leaveTurn = Integer.MAX_VALUE;
+			try {
+				leave();
+			} catch (IllegalStateException e) {
+				System.err.println("Cannot leave: " + e.getMessage());
+			}
+		}
+		int start = -1;
+		synchronized (regionLock) {
+			if (giving != null && givingTurn < 0) {
+				// In conservative mode our peers may be in the next turn
+				// already, and cannot go back.
+				givingTurn = engine.conservative ? turn + 1 : turn;
+				start = givingTurn;
+				hold(engine.getID(), start);
+			}
+		}
+		if (start >= 0) {
+			if (engine.verbose) {
+				System.out.println("Handing a region to " + givingTo
+						+ " at turn " + start);
+			}
+			for (RemoteEngine re : engine.peerList) {
+				Message.sendHold(re.out, start);
+			}
+		}
+		if (!engine.conservative && turn > holdTurn) {
+			// What we did since may have been sent to the cells' old owner.
+			engine.rollback(holdTurn);
+		}
+		applyRegionChanges();
+		if (turn == givingTurn && !yielding() && engine.committed(turn)) {
+			give();
+		}
+	}
+
+	/*
+	 * Whether another engine is handing over at the same turn as us and
+	 * goes first, so that we know its new layout before working out ours.
+	 */
+	private boolean yielding() {
+		int turn = engine.turn;
+		synchronized (regionLock) {
+			for (Map.Entry<String, LinkedList<Integer>> e : holds.entrySet()) {
+				if (e.getValue().getFirst() == turn
+						&& e.getKey().compareTo(engine.getID()) < 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Hands what we were asked to over, once every engine has finished the
+	 * turn we are at, so that nothing more can arrive for its cells. The
+	 * receiver takes them as they are now, and both of us save what we have
+	 * as our state for this turn, so that rolling back to it cannot undo
+	 * the handover; nothing can take us back any further. If a handover
+	 * since we were asked has changed our region or theirs so that the
+	 * strip no longer fits, we keep it.
+	 */
+	private void give() {
+		Message.Region given;
+		RemoteEngine to;
+		synchronized (regionLock) {
+			given = giving;
+			to = engine.getPeer(givingTo);
+		}
+		Message.Region mine = remainder(region(engine), given);
+		Message.Region theirs = to == null ? null : union(region(to), given);
+		if (mine == null || theirs == null) {
+			// An earlier handover changed our region or theirs.
+			System.err.println("Can no longer hand " + given.tlx + ","
+					+ given.tly + " " + given.width + "x" + given.height
+					+ " to " + givingTo);
+		} else {
+			transfer(given, mine, to, theirs);
+		}
+		// Lets go of our peers either way. If we gave everything away, our
+		// empty region tells them we have left.
+		sendLayout(to);
+		synchronized (regionLock) {
+			release(engine.getID());
+			giving = null;
+			givingTo = null;
+			givingTurn = -1;
+		}
+		if (engine.width == 0 || engine.height == 0) {
+			depart();
+		}
+	}
+
+	/*
+	 * Tells every engine we have heard of, through our peers, that we no
+	 * longer hold GVT back. Nothing we sent is unacked: everything before
+	 * the handover is committed, and we have sent nothing since.
+	 */
+	private void depart() {
+		departed = true;
+		engine.timeTable.departed(engine.getID());
+		for (RemoteEngine re : engine.peerList) {
+			synchronized (re.out) {
+				re.sendEndTurn(Integer.MAX_VALUE, engine.timeTable.snapshot());
+			}
+		}
+		if (engine.verbose) {
+			System.out.println("Left at turn " + engine.turn);
+		}
+	}
+
+	/*
+	 * Waits for our peers to hang up, which each does once it has taken in
+	 * that we left, so that nothing we sent is cut off, then shuts down.
+	 */
+	void hangUp() {
+		long end = System.currentTimeMillis() + HANG_UP_MILLIS;
+		for (RemoteEngine re : engine.peerList) {
+			try {
+				if (re.readerThread != null) {
+					re.readerThread.join(Math.max(1, end
+							- System.currentTimeMillis()));
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		engine.shutdown();
+	}
+
+	/*
+	 * Drops a peer that has handed its whole region over and left, and hangs
+	 * up on it.
+	 */
+	private void forget(RemoteEngine re) {
+		engine.peerList.remove(re);
+		engine.timeTable.departed(re.getID());
+		synchronized (regionLock) {
+			holds.remove(re.getID());
+			updateHoldTurn();
+		}
+		re.close();
+		if (engine.peerList.isEmpty()) {
+			// We report our time to no one any more, so our last report
+			// would only hold us back.
+			engine.timeTable.remove(engine.getID());
+		}
+		if (engine.verbose) {
+			System.out.println(re.getID() + " has left");
+		}
+	}
+
+	// Streams the given cells to the other engine and shrinks to mine.
+	private void transfer(Message.Region given, Message.Region mine,
+			RemoteEngine to, Message.Region theirs) {
+		ArrayList<LocalCell> handed = new ArrayList<LocalCell>();
+		int agents = 0;
+		for (LocalCell cell : engine.activeCells) {
+			if (cell.getX() >= given.tlx && cell.getY() >= given.tly
+					&& cell.getX() < given.tlx + given.width
+					&& cell.getY() < given.tly + given.height) {
+				handed.add(cell);
+				agents += cell.getAgents().size();
+			}
+		}
+		Message.sendRegionTransfer(to.out, engine.turn, given, theirs,
+				handed);
+		for (LocalCell cell : handed) {
+			engine.retired.addAll(cell.getAgents());
+			cell.clear();
+		}
+		if (mine.width == 0 || mine.height == 0) {
+			// We are leaving, and have no cells to keep.
+			engine.setCoordinates(mine.tlx, mine.tly, mine.width, mine.height);
+		} else {
+			resize(mine);
+		}
+		to.setCoordinates(theirs.tlx, theirs.tly, theirs.width, theirs.height);
+		resave();
+		if (engine.verbose) {
+			System.out.println("Handed " + agents + " agents in " + handed.size()
+					+ " cells to " + to.getID() + " at turn " + engine.turn);
+		}
+	}
+
+	/*
+	 * Tells our peers our region and that of the other engine in a
+	 * handover, which lets go of the turn we held them at if it was ours.
+	 */
+	private void sendLayout(RemoteEngine other) {
+		Message.RegionMap map = new Message.RegionMap();
+		map.regions.add(region(engine));
+		if (other != null) {
+			map.regions.add(region(other));
+		}
+		for (RemoteEngine re : engine.peerList) {
+			Message.sendRegionMap(re.out, map);
+		}
+	}
+
+	/*
+	 * Takes on the parts of regions handed to us at the turn we are at, and
+	 * the new layouts of the peers that held us there, which lets go of us.
+	 * Layouts from peers that did not hold us are taken on straight away.
+	 */
+	private void applyRegionChanges() {
+		ArrayList<Message.RegionTransfer> taken = new ArrayList<Message.RegionTransfer>();
+		ArrayList<String> givers = new ArrayList<String>();
+		ArrayList<Message.RegionMap> layouts = new ArrayList<Message.RegionMap>();
+		synchronized (regionLock) {
+			if (transfers.isEmpty() && maps.isEmpty()) {
+				return;
+			}
+			for (int i = 0; i < transfers.size(); i++) {
+				if (transfers.get(i).turn == engine.turn) {
+					taken.add(transfers.remove(i));
+					givers.add(transferSenders.remove(i--));
+				}
+			}
+			for (int i = 0; i < maps.size(); i++) {
+				String from = mapSenders.get(i);
+				LinkedList<Integer> turns = holds.get(from);
+				if (turns == null || turns.getFirst() == engine.turn) {
+					if (turns != null) {
+						release(from);
+					}
+					layouts.add(maps.remove(i));
+					mapSenders.remove(i--);
+				}
+			}
+		}
+		for (int i = 0; i < taken.size(); i++) {
+			take(taken.get(i), engine.getPeer(givers.get(i)));
+		}
+		for (Message.RegionMap map : layouts) {
+			for (Message.Region r : map.regions) {
+				RemoteEngine re = engine.getPeer(r.getID());
+				if (re == null) {
+					continue;
+				}
+				if (r.width == 0 || r.height == 0) {
+					forget(re);
+				} else {
+					re.setCoordinates(r.tlx, r.tly, r.width, r.height);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Grows our region by the cells a peer handed us, and places the agents
+	 * in them.
+	 */
+	private void take(Message.RegionTransfer t, RemoteEngine from) {
+		Message.Region grown = union(region(engine), t.given);
+		if (grown == null) {
+			// Only if we changed in a handover our peer had not heard of.
+			System.err.println("Region handed to us does not fit ours");
+			grown = t.region;
+		}
+		resize(grown);
+		Message.Region left = null;
+		if (from != null) {
+			left = remainder(region(from), t.given);
+			if (left != null) {
+				from.setCoordinates(left.tlx, left.tly, left.width,
+						left.height);
+			}
+		}
+		int agents = 0;
+		for (byte[] chunk : t.chunks) {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+					chunk));
+			try {
+				while (dis.available() > 0) {
+					int x = dis.readInt();
+					int y = dis.readInt();
+					int count = dis.readInt();
+					LocalCell cell = engine.getCell(x, y);
+					agents += count;
+					while (count-- != 0) {
+						cell.add(Agent.read(dis, engine.pool));
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		resave();
+		// If we are handing over too, the layout we send then tells our
+		// peers, and one now would let them go too soon. If the giver has
+		// left, its own layout says so.
+		if (from != null && givingTurn < 0) {
+			sendLayout(left == null || left.width == 0 || left.height == 0 ? null
+					: from);
+		}
+		if (engine.verbose) {
+			System.out.println("Took " + agents + " agents in " + t.given.width
+					+ "x" + t.given.height + " cells at turn " + engine.turn);
+		}
+	}
+
+	/*
+	 * Makes r our region, moving our agents into a store of its size. Every
+	 * occupied cell must be in r.
+	 */
+	private void resize(Message.Region r) {
+		ArrayList<LocalCell> occupied = new ArrayList<LocalCell>(
+				engine.activeCells);
+		ArrayList<ArrayList<Agent>> agents = new ArrayList<ArrayList<Agent>>();
+		for (LocalCell cell : occupied) {
+			agents.add(new ArrayList<Agent>(cell.getAgents()));
+		}
+		for (LocalCell cell : occupied) {
+			cell.clear();
+		}
+		engine.dirtyCells.clear();
+		engine.setCoordinates(r.tlx, r.tly, r.width, r.height);
+		if (engine.cells.isSparse()) {
+			engine.cells = new SparseCellStore(r.tlx, r.tly, r.width, r.height,
+					engine);
+		} else {
+			engine.cells = new DenseCellStore(r.tlx, r.tly, r.width, r.height,
+					engine);
+		}
+		if (engine.gui != null) {
+			engine.gui.dispose();
+			engine.gui = new CellGrid(r.height, r.width, r.tlx, r.tly);
+		}
+		for (int i = 0; i < occupied.size(); i++) {
+			LocalCell cell = engine.getCell(occupied.get(i).getX(), occupied
+					.get(i).getY());
+			for (Agent a : agents.get(i)) {
+				cell.add(a);
+			}
+		}
+		// What each peer sees of us has changed.
+		for (RemoteEngine re : engine.peerList) {
+			re.haloCells = null;
+		}
+	}
+
+	/*
+	 * Saves our cells as they are now as the state for the turn we are at,
+	 * after our region changed at its end. Its messages are in them already.
+	 */
+	private void resave() {
+		// Our checkpoint of this turn has our old region, and the other
+		// engine's may have its new one.
+		engine.checkpoint.regionChanged();
+		if (engine.conservative) {
+			return;
+		}
+		Iterator<Message> it = engine.processedMessages.iterator();
+		while (it.hasNext()) {
+			if (it.next().sendTurn <= engine.turn) {
+				it.remove();
+			}
+		}
+		engine.saveState();
+	}
+
+	// An engine's region, with its ID.
+	static Message.Region region(Engine e) {
+		Message.Region r = new Message.Region(e.tlx, e.tly, e.width, e.height);
+		r.id = e.getID();
+		return r;
+	}
+}
@@ -1,84 +1,255 @@
 package engine;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.OutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Random;
 
 import net.Message;
-import net.Message.OfferHelpResponse;
 import net.Message.ReceivedAgent;
+import net.ZeroconfPeerFinder;
 import ui.CellGrid;
 import world.Agent;
+import world.AgentInfo;
+import world.AgentPool;
 import world.Cell;
+import world.Halo;
 import world.LocalCell;
+import world.Neighborhood;
+import world.RemoteCell;
 import world.impl.Rabbit;
 
 public class LocalEngine extends Engine {
 
-	LocalCell[][] cells;
+	CellStore cells;
+	// Cells holding at least one agent, in no particular order. LocalCell
+	// keeps its own index into this list up to date as agents come and go.
+	// Only the engine thread touches the cells, so neither list is locked.
+	ArrayList<LocalCell> activeCells = new ArrayList<LocalCell>();
+	// The occupied cells to step this turn: first those on the border, where
+	// agents can leave for other engines, then the rest.
+	ArrayList<LocalCell> worklist = new ArrayList<LocalCell>();
+	ArrayList<LocalCell> interior = new ArrayList<LocalCell>();
+	// Cells whose occupancy changed since the GUI was last updated.
+	ArrayList<LocalCell> dirtyCells = new ArrayList<LocalCell>();
+	// Deaths, departures to other engines and births are held back while the
+	// agents act, and applied in commitTurn() in the order they happened.
+	// Departures and births elsewhere are sent as soon as the border cells
+	// have been stepped.
+	ArrayList<Agent> deaths = new ArrayList<Agent>();
+	ArrayList<Agent> migrants = new ArrayList<Agent>();
+	ArrayList<Cell> migrantCells = new ArrayList<Cell>();
+	ArrayList<Agent> births = new ArrayList<Agent>();
+	ArrayList<Cell> birthCells = new ArrayList<Cell>();
+	// Agents read from saved states and messages are reused from here. Ones
+	// that died or left during a turn may still be in a cell's snapshot of
+	// its start, so they wait in retired until the next turn or rollback.
+	AgentPool pool = new AgentPool();
+	ArrayList<Agent> retired = new ArrayList<Agent>();
 	ArrayList<RemoteEngine> peerList;
 	int globalWidth;
 	int globalHeight;
 	int stopTurn = 50;
+	// How often a throttled engine re-announces its time to its peers.
+	static final long THROTTLE_ENDTURN_MILLIS = 20;
+	long lastAnnounce = 0;
 	public int turn = 0;
-	boolean rollback = false;
+	// Changes whenever a turn starts or is rolled back, so that the cells
+	// know when their start of turn snapshots are out of date.
+	int epoch = 0;
+	// The epoch the current turn started in. Until it changes the cells'
+	// snapshots still show the start of this turn.
+	int turnEpoch = 0;
+	volatile boolean running = true;
+	// Whether to dump the grid to the console and GUI after every turn.
+	boolean showGrid = true;
+	// Whether to log each turn, annihilation, handover and checkpoint.
+	boolean verbose = true;
+	// In conservative mode every turn ends with a barrier over ENDTURN, so
+	// messages are only processed once they are known to be safe and no
+	// state is saved for rollback.
+	boolean conservative = false;
+	// How far agents can see into a neighbour's cells. Every turn each
+	// neighbour is sent a halo of our cells this close to its border. Off by
+	// default, since models that never look() would only pay for it.
+	int haloWidth = 0;
 	HashMap<Integer, ArrayList<byte[]>> states;
+	// agentCounter as it was when each state was saved, so that a turn run
+	// again after a rollback numbers its offspring as it did the first time.
+	HashMap<Integer, Long> agentCounters = new HashMap<Integer, Long>();
 	public PriorityQueue<Message> recvdMessages;
 	LinkedList<Message> processedMessages;
-	PriorityQueue<Message> unackMessages;
 	PriorityQueue<Message> antiMessages;
+	// Antimessages that arrived before their message. Guarded by
+	// recvdMessages.
+	LinkedList<Message> orphanAntiMessages;
+	// Our peers' findCell and getAgentInfo requests, which are answered once
+	// we have reached the turn they ask about. Guarded by itself.
+	LinkedList<Message.Query> queries = new LinkedList<Message.Query>();
+	// Counts the requests and replies that have arrived, so that an engine
+	// waiting for a reply wakes up for either. Guarded by queries.
+	int arrivals = 0;
+	// Agent and message ids are this engine's ordinal in the top 16 bits
+	// and a counter in the rest, so engines never need to agree on them. The
+	// first engine is 0 and it numbers the engines that join it.
+	int ordinal = 0;
+	int nextOrdinal = 1;
+	// The expected cost of an agent of each class, for dividing the world
+	// fairly. A class that is not listed costs 1.
+	HashMap<String, Double> costs = new HashMap<String, Double>();
+	long agentCounter = 0;
+	long messageCounter = 0;
+	public static final int ORDINAL_SHIFT = 48;
+	TimeTable timeTable = new TimeTable();
+	OptimismWindow window = new OptimismWindow();
+	EngineStats stats = new EngineStats();
+	final Handover handover = new Handover(this);
+	final Checkpoint checkpoint = new Checkpoint(this);
+	final Admission admission = new Admission(this);
 
 	CellGrid gui;
 
 	Random random = new Random();
 
 	public LocalEngine(int tlx, int tly, int width, int height, int globalWidth, int globalHeight) {
+		this(tlx, tly, width, height, globalWidth, globalHeight, true);
+	}
+
+	public LocalEngine(int tlx, int tly, int width, int height, int globalWidth,
+			int globalHeight, boolean showGui) {
+		this(tlx, tly, width, height, globalWidth, globalHeight, showGui, false);
+	}
+
+	/**
+	 * @param sparse
+	 *            only hold the cells near agents, for regions too big to
+	 *            hold every cell. There is no GUI then.
+	 */
+	public LocalEngine(int tlx, int tly, int width, int height, int globalWidth,
+			int globalHeight, boolean showGui, boolean sparse) {
 		super(tlx, tly, width, height);
 		this.states = new HashMap<Integer, ArrayList<byte[]>>();
 		this.recvdMessages = new PriorityQueue<Message>(8,
 				Message.sendTurnComparator);
 		this.antiMessages = new PriorityQueue<Message>(8,
 				Message.reverseSendTurnComparator);
-		this.unackMessages = new PriorityQueue<Message>(8, Message.sendTurnComparator);
 		this.processedMessages = new LinkedList<Message>();
+		this.orphanAntiMessages = new LinkedList<Message>();
 		this.globalWidth = globalWidth;
 		this.globalHeight = globalHeight;
 		peerList = new ArrayList<RemoteEngine>();
-		cells = new LocalCell[height][width];
-		gui = new CellGrid(this.height, this.width, tlx, tly);
-		for (int i = 0; i < this.height; i++) {
-			for (int j = 0; j < this.width; j++) {
-				cells[i][j] = new LocalCell(tlx + j, tly + i, this);
-			}
+		stats.setWindow(window.getWindow());
+		if (sparse) {
+			cells = new SparseCellStore(tlx, tly, width, height, this);
+		} else {
+			cells = new DenseCellStore(tlx, tly, width, height, this);
+		}
+		if (showGui && !sparse) {
+			gui = new CellGrid(this.height, this.width, tlx, tly);
 		}
 	}
 
-	private void saveState() {
+	// Cells are stepped in the order their store keeps them: tile by tile,
+	// then row by row within a tile. Being fixed by where a cell is, not by
+	// when it became occupied, this keeps a run from depending on its
+	// rollback history, and it walks memory a tile at a time.
+	static final Comparator<LocalCell> storeOrder = new Comparator<LocalCell>() {
+		public int compare(LocalCell a, LocalCell b) {
+			long i = a.getStoreIndex();
+			long j = b.getStoreIndex();
+			return i < j ? -1 : (i == j ? 0 : 1);
+		}
+	};
+
+	public void activate(LocalCell cell) {
+		cell.setActiveIndex(activeCells.size());
+		activeCells.add(cell);
+		cells.occupied(cell);
+		markDirty(cell);
+	}
 
-		ArrayList<byte[]> newState = new ArrayList<byte[]>();
-		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < width; j++) {
-				LocalCell cell = cells[i][j];
-				newState.add(cell.serialize());
-			}
+	public void deactivate(LocalCell cell) {
+		int i = cell.getActiveIndex();
+		LocalCell last = activeCells.remove(activeCells.size() - 1);
+		if (last != cell) {
+			activeCells.set(i, last);
+			last.setActiveIndex(i);
+		}
+		cell.setActiveIndex(-1);
+		cells.emptied(cell);
+		markDirty(cell);
+	}
+
+	void markDirty(LocalCell cell) {
+		if (gui != null && !cell.isDirty()) {
+			cell.setDirty(true);
+			dirtyCells.add(cell);
+		}
+	}
+
+	// Only occupied cells are saved; every other cell was empty.
+	void saveState() {
+
+		ArrayList<byte[]> newState = new ArrayList<byte[]>(activeCells.size());
+		for (LocalCell cell : activeCells) {
+			newState.add(cell.serialize());
 		}
 		states.put(turn, newState);
+		agentCounters.put(turn, agentCounter);
 	}
 
-	private void rollback(int turn) {
-		System.err.println("Rolling back from turn " + this.turn + " to turn "
-				+ turn);
-		rollback = true;
+	/*
+	 * States are saved after the agents have stepped, but before the messages
+	 * for that turn are applied. A straggler sent in turn t cannot change
+	 * anything we did during turn t, so we restore the state saved in turn t,
+	 * cancel only what we sent after it, and apply turn t's messages again.
+	 */
+	void rollback(int turn) {
+		if (verbose) {
+			System.out.println("Rolling back from turn " + this.turn
+					+ " to turn " + turn);
+		}
+		window.rolledBack(this.turn - turn);
+		stats.rolledBack(this.turn - turn);
+		epoch++;
+		for (RemoteEngine re : peerList) {
+			re.forgetHaloReads(turn);
+			re.forgetCacheReads(turn);
+			// What we told our peers about later turns may change.
+			List<Message.Query> served = re.takeServedAfter(turn);
+			for (Message.Query q : served) {
+				q.revised = true;
+			}
+			synchronized (queries) {
+				queries.addAll(served);
+			}
+		}
 		ArrayList<byte[]> state = states.get(turn);
+		agentCounter = agentCounters.get(turn);
+		// Every agent is about to be read back in again.
+		recycle();
+		for (LocalCell cell : activeCells) {
+			for (Agent a : cell.getAgents()) {
+				pool.put(a);
+			}
+		}
+		while (!activeCells.isEmpty()) {
+			activeCells.get(activeCells.size() - 1).clear();
+		}
 		for (byte[] b : state) {
 			// System.err.println("The byte array is of length " + b.length);
 			ByteArrayInputStream s = new ByteArrayInputStream(b);
@@ -93,9 +264,8 @@ public class LocalEngine extends Engine {
 				 */
 				LocalCell cell = getCell(x, y);
 
-				cell.agents.clear();
 				while (count-- != 0) {
-					cell.add(Agent.read(dis));
+					cell.add(Agent.read(dis, pool));
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -103,37 +273,45 @@ public class LocalEngine extends Engine {
 		}
 
 		// Put rolled-back events back onto the incoming queue
-		for (Message m : processedMessages) {
-			if (m.sendTurn >= turn) {
-				if(!recvdMessages.remove(m)) {
-					recvdMessages.offer(m);
-				} else {
-					System.out.println("Previously processed message annihilated");
+		synchronized (recvdMessages) {
+			Iterator<Message> it = processedMessages.iterator();
+			while (it.hasNext()) {
+				Message m = it.next();
+				if (m.sendTurn >= turn) {
+					it.remove();
+					if(!recvdMessages.remove(m)) {
+						recvdMessages.offer(m);
+					} else if (verbose) {
+						System.out.println("Previously processed message annihilated");
+					}
 				}
 			}
 		}
 
 		// Send antimessages
 		while (!this.antiMessages.isEmpty()
-				&& antiMessages.peek().sendTurn >= turn) {
+				&& antiMessages.peek().sendTurn > turn) {
 			Message msg = antiMessages.poll();
 			RemoteEngine remote = getPeer(msg.id);
-			storeUnack(msg);
-			msg.sendMessage(remote.out);
+			stats.messageSent();
+			remote.send(msg, true);
 		}
 
 		this.turn = turn;
 	}
 
-	public void sendMessage(Message message, OutputStream o) {
-		this.storeUnack(message);
-		message.sendMessage(o);
-		this.storeAntimessage(message);
+	public void sendMessage(Message message, RemoteEngine re) {
+		message.messageId = newMessageId();
+		stats.messageSent();
+		re.send(message, !conservative);
+		if (!conservative) {
+			storeAntimessage(message);
+		}
 	}
 	
 	public RemoteEngine getPeer(String id) {
 		for (RemoteEngine re : peerList) {
-			if (re.getID() == id) {
+			if (re.getID().equals(id)) {
 				return re;
 			}
 		}
@@ -141,78 +319,927 @@ public class LocalEngine extends Engine {
 	}
 	
 	private void fossilCollect(){
-		int minTurn = minLocalTime();
-		for(RemoteEngine re : peerList){
-			System.out.println("Remote turn is " + re.turn);
-			if(re.turn < minTurn){
-				minTurn = re.turn;
+		// An engine stopped for a handover reports itself a turn ahead of
+		// the halos and revisions it will send on resuming, which can take
+		// us back to GVT - 1, so we keep that turn too.
+		int minTurn = timeTable.min(localTime()) - 1;
+		// A rollback to turn t restores the state saved at t, and none can
+		// go back past minTurn, so the states before it will never be
+		// used. One is saved every turn, so the first gap going down is
+		// where the last collection stopped.
+		int i = minTurn - 1;
+		while (i >= 0 && states.remove(i) != null) {
+			agentCounters.remove(i--);
+		}
+		// Nothing can roll us back past minTurn any more.
+		Iterator<Message> it = processedMessages.iterator();
+		while (it.hasNext()) {
+			if (it.next().sendTurn < minTurn) {
+				it.remove();
 			}
 		}
-		System.out.printf("Min turn= %d\n", minTurn);
-		//Remove old states.
-		System.out.printf("Current states %d\n", states.size());
-		//TODO Is this right?
-		int i = minTurn - 1;
-		while(i >= 0 && states.remove(i--) != null);
-		System.out.printf("New states %d\n", states.size());
+		synchronized (recvdMessages) {
+			it = orphanAntiMessages.iterator();
+			while (it.hasNext()) {
+				if (it.next().sendTurn < minTurn) {
+					it.remove();
+				}
+			}
+		}
+		synchronized (antiMessages) {
+			it = antiMessages.iterator();
+			while (it.hasNext()) {
+				if (it.next().sendTurn < minTurn) {
+					it.remove();
+				}
+			}
+		}
+		for (RemoteEngine re : peerList) {
+			re.fossilCollectHalos(minTurn);
+			re.fossilCollectQueries(minTurn);
+		}
 		
 	}
 
 	public void go() {
 
-		while (true) {
-			while (turn < stopTurn) {
-				if (!rollback) {
-					turn++;
-					saveState();
+		// A late halo for turn 1 takes us back to where we started.
+		if (!conservative && !states.containsKey(turn)) {
+			saveState();
+		}
+		checkpoint.start();
+		while (running) {
+			while (running && !paused()) {
+				if (!throttle()) {
+					continue;
 				}
+				exchangeHalos();
+				turn++;
+				epoch++;
+				turnEpoch = epoch;
+				// Nothing can read the snapshots of the last turn any more.
+				cells.release();
+				recycle();
+				if (conservative) {
+					// Nothing is rolled back, so no older reply is read again.
+					for (RemoteEngine re : peerList) {
+						re.fossilCollectQueries(turn);
+					}
+				}
+				serveQueries();
 
 				/*
 				 * try { Thread.sleep(25); } catch (InterruptedException e) {
 				 * e.printStackTrace(); }
 				 */
-				System.out.println("Starting turn " + turn);
-				for (LocalCell[] cell : cells) {
-					for (LocalCell element : cell) {
-						element.resetAgents();
-					}
+				if (verbose) {
+					System.out.println("Starting turn " + turn);
 				}
-
-				for (LocalCell[] cell : cells) {
-					for (LocalCell element : cell) {
+				worklist.clear();
+				interior.clear();
+				for (LocalCell cell : activeCells) {
+					(onBorder(cell) ? worklist : interior).add(cell);
+				}
+				Collections.sort(worklist, storeOrder);
+				Collections.sort(interior, storeOrder);
+				try {
+					for (LocalCell element : worklist) {
+						element.go(turn);
+					}
+					// Our peers can start on these while we do the rest.
+					sendMigrants();
+					for (LocalCell element : interior) {
 						element.go(turn);
 					}
+				} catch (TurnAborted e) {
+					abortTurn();
+					continue;
 				}
-				rollback = false;
-				if (turn % 5 == 0) {
-					for (int j = 0; j < peerList.size(); j++) {
-						System.out.println("ENDTURN to " + peerList.get(j).getID());
-						Message.sendEndTurn(peerList.get(j).out, minLocalTime());
+				commitTurn();
+				if (!conservative) {
+					saveState();
+				}
+				stats.turnExecuted();
+				if (conservative) {
+					endTurnBarrier();
+				} else {
+					window.turnExecuted();
+					stats.setWindow(window.getWindow());
+					if (turn % 5 == 0) {
+						for (int j = 0; j < peerList.size(); j++) {
+							sendEndTurn(peerList.get(j));
+						}
 					}
 				}
 				handleMessages();
-				fossilCollect();
-				System.out.println("At the end of turn  " + turn
-						+ " the grid is:");
-				print();
+				if (!conservative) {
+					fossilCollect();
+				}
+				if (showGrid) {
+					System.out.println("At the end of turn  " + turn
+							+ " the grid is:");
+					print();
+				} else if (gui != null) {
+					updateGui();
+				}
+			}
+			if (handover.departed) {
+				handover.hangUp();
+				return;
+			}
+			handleMessages();
+			checkpoint.writeCommitted();
+			if (!conservative) {
+				// Peers may still be throttled waiting on us.
+				announceTime();
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Whether to stop before the next turn: at the stop turn, at a turn to
+	 * checkpoint at until it is written, or at the turn an engine handing
+	 * over part of its region asked us to stop at.
+	 */
+	private boolean paused() {
+		handover.handOver();
+		return turn >= stopTurn || checkpoint.due()
+				|| turn >= handover.holdTurn || handover.departed;
+	}
+
+	/*
+	 * Whether every engine has finished turn t, which we are at, so that
+	 * nothing can change our cells as they were at its end any more. In
+	 * conservative mode the barrier at the end of the turn has seen to that
+	 * already.
+	 */
+	boolean committed(int t) {
+		return turn == t && (conservative || slowestKnownTurn() > t);
+	}
+
+	/**
+	 * Stops go() and closes the connections to all peers.
+	 */
+	public void shutdown() {
+		running = false;
+		for (RemoteEngine re : peerList) {
+			re.close();
+		}
+		if (gui != null) {
+			gui.dispose();
+		}
+	}
+
+	/**
+	 * @return true once this engine has reached its stop turn and has nothing
+	 *         left to process or to be acknowledged.
+	 */
+	public boolean isIdle() {
+		if (handover.departed) {
+			return true;
+		}
+		if (turn < stopTurn) {
+			return false;
+		}
+		synchronized (recvdMessages) {
+			if (!recvdMessages.isEmpty()) {
+				return false;
+			}
+		}
+		for (RemoteEngine re : peerList) {
+			if (!re.allAcked()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int countAgents() {
+		int count = 0;
+		for (LocalCell cell : activeCells) {
+			count += cell.getAgents().size();
+		}
+		return count;
+	}
+
+	public void setStopTurn(int stopTurn) {
+		this.stopTurn = stopTurn;
+	}
+
+	public void setLeaveTurn(int leaveTurn) {
+		handover.leaveTurn = leaveTurn;
+	}
+
+	public void setShowGrid(boolean showGrid) {
+		this.showGrid = showGrid;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Tells every peer that we have finished the current turn, then waits
+	 * until every peer has said the same. An agent moves at most one cell per
+	 * turn, so once a peer's ENDTURN for this turn has arrived all of its
+	 * messages for this turn are already queued (the socket is FIFO) and
+	 * none can arrive for an earlier turn. This is a lookahead of one turn.
+	 */
+	private void endTurnBarrier() {
+		for (RemoteEngine re : peerList) {
+			sendEndTurn(re);
+		}
+		long start = System.currentTimeMillis();
+		while (slowestPeerTurn() < turn && running) {
+			// A peer still in this turn may be waiting for us to answer.
+			serveQueries();
+			pause();
+		}
+		stats.throttled(System.currentTimeMillis() - start);
+	}
+
+	private int slowestPeerTurn() {
+		int min = turn;
+		// The reader threads update peer turns under this lock.
+		synchronized (recvdMessages) {
+			for (RemoteEngine re : peerList) {
+				if (re.turn < min) {
+					min = re.turn;
+				}
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Blocks while this engine is more than the optimism window ahead of the
+	 * slowest engine it knows about, or while it has more queued for a peer
+	 * than the network is taking, handling incoming messages meanwhile.
+	 * 
+	 * @return false if the engine was shut down while we were waiting.
+	 */
+	private boolean throttle() {
+		if (!awaitWriters()) {
+			return false;
+		}
+		if (conservative || window.allows(turn, slowestKnownTurn())) {
+			return true;
+		}
+		long start = System.currentTimeMillis();
+		while (!window.allows(turn, slowestKnownTurn()) && running) {
+			// Our peers may be waiting on us in turn, so keep telling them
+			// how far we have got.
+			announceTime();
+			handleMessages();
+			pause();
+		}
+		stats.throttled(System.currentTimeMillis() - start);
+		return running;
+	}
+
+	/*
+	 * Another turn would only add to what the slow peer has not taken yet.
+	 */
+	private boolean awaitWriters() {
+		if (!backedUp()) {
+			return true;
+		}
+		long start = System.currentTimeMillis();
+		while (backedUp() && running) {
+			if (!conservative) {
+				announceTime();
 			}
 			handleMessages();
+			pause();
+		}
+		stats.backpressured(System.currentTimeMillis() - start);
+		return running;
+	}
+
+	private boolean backedUp() {
+		for (RemoteEngine re : peerList) {
+			if (re.isBackedUp()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void announceTime() {
+		long now = System.currentTimeMillis();
+		if (now - lastAnnounce >= THROTTLE_ENDTURN_MILLIS) {
+			for (RemoteEngine re : peerList) {
+				sendEndTurn(re);
+			}
+			lastAnnounce = now;
+		}
+	}
+
+	/**
+	 * Reports our time to a peer. In conservative mode this is the turn we
+	 * just finished; otherwise it is our local time, together with everything
+	 * we know about the other engines' times.
+	 */
+	private void sendEndTurn(RemoteEngine re) {
+		// Work the time out while holding the stream, so that any ack our
+		// reader thread sent before this report is accounted for in it.
+		synchronized (re.out) {
+			int time = conservative ? turn : localTime();
+			timeTable.setOwn(getID(), time);
+			re.sendEndTurn(time, timeTable.snapshot());
+		}
+	}
+
+	/**
+	 * @return our estimate of GVT: the lowest turn among our own local time
+	 *         and the latest time we know for every other engine.
+	 */
+	private int slowestKnownTurn() {
+		return timeTable.min(localTime());
+	}
+
+	/**
+	 * Sends every neighbour the halo it will read next turn. In conservative
+	 * mode, also waits for theirs.
+	 */
+	private void exchangeHalos() {
+		if (haloWidth <= 0) {
+			return;
+		}
+		for (RemoteEngine re : peerList) {
+			Halo halo = new Halo(turn + 1);
+			for (LocalCell cell : haloCells(re)) {
+				for (Agent a : cell.getAgents()) {
+					halo.add(new AgentInfo(a, cell.getX(), cell.getY()));
+				}
+			}
+			Message message = new Message(turn, true, re.getID());
+			message.sendHalo(halo);
+			message.messageId = newMessageId();
+			stats.messageSent();
+			// No antimessage: if we roll back we send the halo again.
+			re.send(message, !conservative);
+		}
+		if (conservative) {
+			long start = System.currentTimeMillis();
+			while (running && !haveHalos(turn + 1)) {
+				handleMessages();
+				pause();
+			}
+			stats.throttled(System.currentTimeMillis() - start);
+		}
+	}
+
+	private boolean haveHalos(int turn) {
+		for (RemoteEngine re : peerList) {
+			if (re.latestHaloTurn() < turn) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return our cells within the halo width of a peer's region.
+	 */
+	private ArrayList<LocalCell> haloCells(RemoteEngine re) {
+		if (cells.isSparse()) {
+			// Only the occupied cells matter, and they come and go.
+			ArrayList<LocalCell> near = new ArrayList<LocalCell>();
+			for (LocalCell cell : activeCells) {
+				if (nearPeer(cell, re)) {
+					near.add(cell);
+				}
+			}
+			return near;
+		}
+		if (re.haloCells == null) {
+			re.haloCells = new ArrayList<LocalCell>();
+			for (int y = tly; y < tly + height; y++) {
+				for (int x = tlx; x < tlx + width; x++) {
+					if (nearPeer(x, y, re)) {
+						re.haloCells.add(getCell(x, y));
+					}
+				}
+			}
+		}
+		return re.haloCells;
+	}
+
+	// Whether a peer's halo includes this cell.
+	private boolean nearPeer(LocalCell cell, RemoteEngine re) {
+		return nearPeer(cell.getX(), cell.getY(), re);
+	}
+
+	private boolean nearPeer(int x, int y, RemoteEngine re) {
+		int dx = gap(x, re.tlx, re.width, globalWidth);
+		int dy = gap(y, re.tly, re.height, globalHeight);
+		return Math.max(dx, dy) <= haloWidth;
+	}
+
+	/*
+	 * How many steps it is from v to the nearest of the len values starting
+	 * at start, going either way around a circle of the given size.
+	 */
+	private static int gap(int v, int start, int len, int size) {
+		if (len >= size) {
+			return 0;
+		}
+		int d = ((v - start) % size + size) % size;
+		if (d < len) {
+			return 0;
+		}
+		return Math.min(d - (len - 1), size - d);
+	}
+
+	/**
+	 * Everything an agent sees is as it was at the start of the turn, so
+	 * what it sees does not depend on which engine its neighbours are on or
+	 * on the order the agents act in. Remote cells beyond the halo are asked
+	 * for all at once, so a look costs at most one round trip.
+	 */
+	public Neighborhood look(Agent agent, Cell from, int radius) {
+		Neighborhood n = new Neighborhood();
+		// Don't count the same cell twice in a small world.
+		int rx = Math.min(radius, (globalWidth - 1) / 2);
+		int ry = Math.min(radius, (globalHeight - 1) / 2);
+		ArrayList<RemoteEngine> asked = new ArrayList<RemoteEngine>();
+		ArrayList<Message.Query> requests = new ArrayList<Message.Query>();
+		for (int dy = -ry; dy <= ry; dy++) {
+			for (int dx = -rx; dx <= rx; dx++) {
+				int x = wrap(from.getX() + dx, globalWidth);
+				int y = wrap(from.getY() + dy, globalHeight);
+				if (hasCell(x, y)) {
+					List<Agent> here = startOfTurnAgents(x, y);
+					for (int i = 0; i < here.size(); i++) {
+						Agent a = here.get(i);
+						if (a != agent) {
+							n.add(new AgentInfo(a, x, y));
+						}
+					}
+					continue;
+				}
+				RemoteEngine re = owner(x, y);
+				if (re == null) {
+					continue;
+				}
+				List<AgentInfo> there;
+				if (inHalo(x, y)) {
+					there = re.readHalo(turn, x, y, !conservative);
+				} else {
+					there = re.readCell(turn, x, y);
+					if (there == null) {
+						Message.Query q = new Message.Query();
+						q.type = Message.FINDCELL;
+						q.x = x;
+						q.y = y;
+						asked.add(re);
+						requests.add(ask(re, q));
+						continue;
+					}
+				}
+				addOthers(n, there, agent);
+			}
+		}
+		for (int i = 0; i < requests.size(); i++) {
+			Message.Query reply = awaitReply(asked.get(i), requests.get(i));
+			if (reply != null) {
+				asked.get(i).cacheCell(reply);
+				addOthers(n, reply.agents, agent);
+			}
+		}
+		return n;
+	}
+
+	private static void addOthers(Neighborhood n, List<AgentInfo> there,
+			Agent agent) {
+		for (AgentInfo a : there) {
+			if (a.id != agent.getId()) {
+				n.add(a);
+			}
+		}
+	}
+
+	/**
+	 * @return the values the named field of the given agents had at the start
+	 *         of the turn, asking other engines for theirs all at once.
+	 */
+	public Integer[] inspect(List<AgentInfo> others, String field) {
+		Integer[] values = new Integer[others.size()];
+		ArrayList<Integer> waiting = new ArrayList<Integer>();
+		ArrayList<RemoteEngine> asked = new ArrayList<RemoteEngine>();
+		ArrayList<Message.Query> requests = new ArrayList<Message.Query>();
+		for (int i = 0; i < values.length; i++) {
+			AgentInfo other = others.get(i);
+			if (hasCell(other.x, other.y)) {
+				List<Agent> there = startOfTurnAgents(other.x, other.y);
+				for (int k = 0; k < there.size(); k++) {
+					Agent a = there.get(k);
+					if (a.getId() == other.id) {
+						values[i] = a.getFieldAtStartOf(field, turn);
+						break;
+					}
+				}
+				continue;
+			}
+			RemoteEngine re = owner(other.x, other.y);
+			if (re == null) {
+				continue;
+			}
+			RemoteEngine.Answer cached = re.readField(turn, other.id, other.x,
+					other.y, field);
+			if (cached != null) {
+				values[i] = cached.value;
+				continue;
+			}
+			Message.Query q = new Message.Query();
+			q.type = Message.GETAGENTINFO;
+			q.x = other.x;
+			q.y = other.y;
+			q.agentId = other.id;
+			q.field = field;
+			waiting.add(i);
+			asked.add(re);
+			requests.add(ask(re, q));
+		}
+		for (int i = 0; i < requests.size(); i++) {
+			Message.Query reply = awaitReply(asked.get(i), requests.get(i));
+			if (reply != null) {
+				Message.Query q = requests.get(i);
+				asked.get(i).cacheField(turn, q.agentId, q.x, q.y, field,
+						reply.value);
+				values[waiting.get(i)] = reply.value;
+			}
+		}
+		return values;
+	}
+
+	private RemoteEngine owner(int x, int y) {
+		for (RemoteEngine re : peerList) {
+			if (re.hasCell(x, y)) {
+				return re;
+			}
+		}
+		return null;
+	}
+
+	// Whether a remote cell is in the halo its engine sends us.
+	private boolean inHalo(int x, int y) {
+		return Math.max(gap(x, tlx, width, globalWidth),
+				gap(y, tly, height, globalHeight)) <= haloWidth;
+	}
+
+	/*
+	 * Sends a request about the current turn. Until the reply arrives we
+	 * cannot be sure the peer will not fossil collect the state it needs,
+	 * so the request holds our local time back like an unacked message.
+	 */
+	private Message.Query ask(RemoteEngine re, Message.Query q) {
+		q.requestId = newMessageId();
+		re.expectReply(q.requestId, turn - 1, !conservative);
+		q.turn = turn;
+		stats.messageSent();
+		Message.sendQuery(re.out, q);
+		return q;
+	}
+
+	/*
+	 * We cannot handle messages in the middle of a turn, but a peer may be
+	 * waiting on us in turn, so meanwhile we answer its requests and keep
+	 * telling it our time. That is not enough if a message from before the
+	 * last turn is waiting: it holds GVT back, and the peer may be throttled
+	 * behind it, so we give up on this turn and handle it.
+	 */
+	private Message.Query awaitReply(RemoteEngine re, Message.Query q) {
+		while (running && !re.isClosed()) {
+			int seen;
+			synchronized (queries) {
+				seen = arrivals;
+			}
+			Message.Query reply = re.takeReply(q.requestId);
+			if (reply != null) {
+				return reply;
+			}
+			if (!conservative) {
+				synchronized (recvdMessages) {
+					Message next = recvdMessages.peek();
+					if (next != null && next.sendTurn < turn - 1) {
+						throw new TurnAborted();
+					}
+				}
+			}
+			serveQueries();
+			if (!conservative) {
+				announceTime();
+			}
+			synchronized (queries) {
+				if (arrivals == seen) {
+					try {
+						queries.wait(1);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Sleeps for a millisecond, or until a request or reply arrives.
+	 */
+	private void pause() {
+		synchronized (queries) {
+			try {
+				queries.wait(1);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Thrown out of an agent's go() to give up on the rest of the turn.
+	static class TurnAborted extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/*
+	 * Throws away the half-run turn, cancelling any agents it already sent,
+	 * and handles what was waiting.
+	 */
+	private void abortTurn() {
+		deaths.clear();
+		migrants.clear();
+		migrantCells.clear();
+		births.clear();
+		birthCells.clear();
+		for (RemoteEngine re : peerList) {
+			re.abandonRequests();
+		}
+		rollback(turn - 1);
+		handleMessages();
+	}
+
+	public void queueQuery(Message.Query q) {
+		synchronized (queries) {
+			queries.add(q);
+			arrivals++;
+			queries.notifyAll();
+		}
+	}
+
+	void wakeUp() {
+		synchronized (queries) {
+			arrivals++;
+			queries.notifyAll();
+		}
+	}
+
+	/**
+	 * Answers the requests about turns we have reached.
+	 */
+	private void serveQueries() {
+		ArrayList<Message.Query> ready = new ArrayList<Message.Query>();
+		synchronized (queries) {
+			Iterator<Message.Query> it = queries.iterator();
+			while (it.hasNext()) {
+				Message.Query q = it.next();
+				if (q.turn <= turn) {
+					it.remove();
+					ready.add(q);
+				}
+			}
+		}
+		for (Message.Query q : ready) {
+			RemoteEngine re = getPeer(q.id);
+			if (re == null) {
+				continue;
+			}
+			List<Agent> there = agentsAtStartOf(q.turn, q.x, q.y);
+			Message.Query reply = new Message.Query();
+			reply.requestId = q.requestId;
+			reply.turn = q.turn;
+			reply.x = q.x;
+			reply.y = q.y;
+			reply.agentId = q.agentId;
+			reply.field = q.field;
+			if (q.type == Message.FINDCELL) {
+				reply.type = Message.CELLINFO;
+				reply.agents = new ArrayList<AgentInfo>(there.size());
+				for (Agent a : there) {
+					reply.agents.add(new AgentInfo(a, q.x, q.y));
+				}
+			} else {
+				reply.type = Message.AGENTINFO;
+				for (Agent a : there) {
+					if (a.getId() == q.agentId) {
+						reply.value = a.getFieldAtStartOf(q.field, q.turn);
+						break;
+					}
+				}
+			}
+			stats.messageSent();
+			if (q.revised) {
+				sendRevision(re, reply);
+			} else {
+				Message.sendQuery(re.out, reply);
+			}
+			if (!conservative) {
+				re.served(q);
+			}
+		}
+	}
+
+	/*
+	 * The agents in one of our cells at the start of a turn no later than the
+	 * current one. Unless we are still in the turn we started, that is the
+	 * state saved at the end of the turn before plus the agents its messages
+	 * brought.
+	 */
+	private List<Agent> agentsAtStartOf(int t, int x, int y) {
+		if (!hasCell(x, y)) {
+			return NOBODY;
+		}
+		if (t == turn && epoch == turnEpoch) {
+			return startOfTurnAgents(x, y);
+		}
+		ArrayList<Agent> found = new ArrayList<Agent>();
+		ArrayList<byte[]> state = states.get(t - 1);
+		try {
+			for (byte[] b : state) {
+				DataInputStream dis = new DataInputStream(
+						new ByteArrayInputStream(b));
+				int cx = dis.readInt();
+				int cy = dis.readInt();
+				if (cx == x && cy == y) {
+					int count = dis.readInt();
+					while (count-- != 0) {
+						found.add(Agent.read(dis));
+					}
+					break;
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
+		for (Message m : processedMessages) {
+			if (m.sendTurn == t - 1 && m.messageType == Message.SENDAGENT) {
+				ReceivedAgent r = m.recvAgent();
+				if (r.x == x && r.y == y) {
+					found.add(r.agent);
+				}
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * Answers a request again after a rollback. The peer may have to roll
+	 * back if the answer changed, so like a halo this is sent the turn before
+	 * the one it describes and is acked.
+	 */
+	private void sendRevision(RemoteEngine re, Message.Query reply) {
+		Message message = new Message(reply.turn - 1, true, re.getID());
+		message.sendRevision(reply);
+		message.messageId = newMessageId();
+		re.send(message, true);
+	}
+
+	private static int wrap(int v, int size) {
+		return ((v % size) + size) % size;
 	}
 
-	public void moveAgent(Agent agent, LocalCell oldCell, int x, int y) {
+	public void moveAgent(Agent agent, Cell oldCell, int x, int y) {
 		Cell newCell = findCell(oldCell.getX() + x, oldCell.getY() + y);
-		newCell.add(agent);
-		oldCell.remove(agent);
+		if (oldCell instanceof LocalCell) {
+			((LocalCell) oldCell).remove(agent);
+		}
+		if (newCell instanceof LocalCell) {
+			newCell.add(agent);
+		} else {
+			// Wait until the end of the turn, in case the agent dies or
+			// moves on before then.
+			agent.setCell(newCell);
+			migrants.add(agent);
+			migrantCells.add(newCell);
+		}
+	}
+
+	public void spawnAgent(Cell parentCell, Agent child, int x, int y) {
+		// Offspring sent to another engine are still numbered by us.
+		if (child.getId() == 0) {
+			child.setId(newAgentId());
+		}
+		births.add(child);
+		birthCells.add(findCell(parentCell.getX() + x, parentCell.getY() + y));
+	}
+
+	public void killAgent(Agent agent) {
+		deaths.add(agent);
+	}
+
+	/**
+	 * Applies this turn's deaths, departures and births. This runs before the
+	 * state is saved, so a rollback never has to undo half a turn.
+	 */
+	private void commitTurn() {
+		for (Agent a : deaths) {
+			if (a.getCell() instanceof LocalCell) {
+				((LocalCell) a.getCell()).remove(a);
+			}
+			retired.add(a);
+		}
+		deaths.clear();
+		sendMigrants();
+		for (int i = 0; i < births.size(); i++) {
+			if (births.get(i).isAlive()) {
+				birthCells.get(i).add(births.get(i));
+			}
+		}
+		births.clear();
+		birthCells.clear();
 	}
 
+	/**
+	 * Sends the agents that have left for other engines so far this turn,
+	 * and the offspring placed on them. Every agent that could still change
+	 * its mind has to have acted already.
+	 */
+	private void sendMigrants() {
+		for (int i = 0; i < migrants.size(); i++) {
+			Agent a = migrants.get(i);
+			Cell cell = migrantCells.get(i);
+			// Skip agents that died or moved on after this move.
+			if (a.isAlive() && a.getCell() == cell) {
+				cell.add(a);
+				retired.add(a);
+			}
+		}
+		migrants.clear();
+		migrantCells.clear();
+		int kept = 0;
+		for (int i = 0; i < births.size(); i++) {
+			Agent child = births.get(i);
+			Cell cell = birthCells.get(i);
+			if (cell instanceof RemoteCell) {
+				if (child.isAlive()) {
+					cell.add(child);
+					retired.add(child);
+				}
+			} else {
+				births.set(kept, child);
+				birthCells.set(kept++, cell);
+			}
+		}
+		births.subList(kept, births.size()).clear();
+		birthCells.subList(kept, birthCells.size()).clear();
+	}
+
+	/*
+	 * Pools the agents that left the world, once no snapshot that still shows
+	 * them can be read.
+	 */
+	private void recycle() {
+		for (Agent a : retired) {
+			pool.put(a);
+		}
+		retired.clear();
+	}
+
+	public AgentPool getAgentPool() {
+		return pool;
+	}
+
+	/*
+	 * Whether an agent in this cell could move to another engine's cell.
+	 */
+	private boolean onBorder(LocalCell cell) {
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				if (!hasCell(wrap(cell.getX() + dx, globalWidth), wrap(
+						cell.getY() + dy, globalHeight))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * The cell of whichever peer owns (x, y). Every engine is linked to every
+	 * engine next to it, so a cell that no peer owns is a gap in the layout.
+	 */
 	private Cell findRemoteCell(int x, int y) {
 		for (int i = 0; i < peerList.size(); i++) {
 			if (peerList.get(i).hasCell(x, y))
 				return peerList.get(i).findCell(x, y);
 		}
-		System.err.println("Didn't find remote cell: " + x + ", " + y);
-		return null;
+		throw new IllegalStateException("No engine owns cell " + x + ", " + y);
 	}
 
 	@Override
@@ -236,7 +1263,32 @@ public class LocalEngine extends Engine {
 	}
 
 	public LocalCell getCell(int x, int y) {
-		return cells[y - tly][x - tlx];
+		return cells.get(x, y);
+	}
+
+	/**
+	 * @return where this engine keeps its cells.
+	 */
+	public CellStore getCellStore() {
+		return cells;
+	}
+
+	/**
+	 * @return how this engine takes part in starting a run.
+	 */
+	public Admission getAdmission() {
+		return admission;
+	}
+
+	static final List<Agent> NOBODY = Collections.emptyList();
+
+	/*
+	 * The agents in one of our cells at the start of the turn, without
+	 * making the cell if it does not exist.
+	 */
+	private List<Agent> startOfTurnAgents(int x, int y) {
+		LocalCell cell = cells.peek(x, y);
+		return cell == null ? NOBODY : cell.startOfTurnAgents();
 	}
 
 	public void placeAgent(int x, int y, Agent agent) {
@@ -246,62 +1298,198 @@ public class LocalEngine extends Engine {
 
 	public void placeAgents(int agents) {
 		for (int i = 0; i < agents; i++) {
-			LocalCell cell = getCell(0, i);
+			// Down our first column, then the next.
+			LocalCell cell = getCell(tlx + i / height % width, tly + i % height);
 			cell.add(new Rabbit());
 		}
 	}
 
+	/**
+	 * Places the agents listed in a population file. Each line is either a
+	 * class, a cell and how many agents of that class to put there (one if
+	 * left out):
+	 * 
+	 * <pre>
+	 * world.impl.Rabbit 12 40 100
+	 * </pre>
+	 * 
+	 * or the expected cost of each agent of a class relative to the others,
+	 * which the world is divided by:
+	 * 
+	 * <pre>
+	 * cost world.impl.ComplexRabbit 3
+	 * </pre>
+	 * 
+	 * Classes without a package are looked for in world.impl. Blank lines
+	 * and everything after a # are ignored.
+	 */
+	public void loadPopulation(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				int hash = line.indexOf('#');
+				if (hash >= 0) {
+					line = line.substring(0, hash);
+				}
+				String[] words = line.trim().split("\\s+");
+				if (words[0].length() == 0) {
+					continue;
+				}
+				try {
+					if (words[0].equals("cost") && words.length == 3) {
+						costs.put(agentClass(words[1]).getName(), Double
+								.parseDouble(words[2]));
+						continue;
+					}
+					if (words.length != 3 && words.length != 4) {
+						throw new IOException("expected class x y [count]");
+					}
+					Class<?> c = agentClass(words[0]);
+					int x = wrap(Integer.parseInt(words[1]), globalWidth);
+					int y = wrap(Integer.parseInt(words[2]), globalHeight);
+					int count = words.length == 4 ? Integer.parseInt(words[3])
+							: 1;
+					if (!hasCell(x, y)) {
+						throw new IOException("(" + x + ", " + y
+								+ ") is not ours");
+					}
+					LocalCell cell = getCell(x, y);
+					for (int i = 0; i < count; i++) {
+						cell.add(pool.get(c));
+					}
+				} catch (Exception e) {
+					throw new IOException(file + ":" + number + ": "
+							+ e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static Class<?> agentClass(String name)
+			throws ClassNotFoundException {
+		Class<?> c = Class.forName(name.indexOf('.') < 0 ? "world.impl."
+				+ name : name);
+		if (!Agent.class.isAssignableFrom(c)) {
+			throw new ClassNotFoundException(name + " is not an Agent");
+		}
+		return c;
+	}
+
 	public void print() {
+		if (cells.isSparse()) {
+			// Far too big to draw.
+			System.out.println(activeCells.size() + " occupied cells in "
+					+ ((SparseCellStore) cells).chunkCount() + " tiles");
+			return;
+		}
 		for (int i = 0; i < height; i++) {
 			for (int j = 0; j < width; j++) {
-				LocalCell cell = cells[i][j];
+				LocalCell cell = getCell(tlx + j, tly + i);
 				if (cell.getAgents().size() > 0) {
 					System.out.print("* ");
-					gui.setColor(j, i, CellGrid.agent1);
 				} else {
 					System.out.print("- ");
-					gui.setColor(j, i, CellGrid.empty);
 				}
 			}
 			System.out.println();
 		}
+		if (gui != null) {
+			updateGui();
+		}
+	}
+
+	/**
+	 * Recolours only the cells that became empty or occupied since the last
+	 * update.
+	 */
+	private void updateGui() {
+		for (LocalCell cell : dirtyCells) {
+			cell.setDirty(false);
+			gui.setColor(cell.getX() - tlx, cell.getY() - tly, cell
+					.getAgents().isEmpty() ? CellGrid.empty : CellGrid.agent1);
+		}
+		dirtyCells.clear();
 	}
 
 	private void handleMessages() {
 
+		serveQueries();
 		try {
 			// It is OK to check if recvdMessages is empty without
-			// synchronizing,
-			// because this has no effect on the process adding things to it.
+			// synchronizing, but the reader may annihilate the head before we
+			// take the lock, so check again once we have it.
 			// System.out.println("Queue size =" + recvdMessages.size());
 			while (!recvdMessages.isEmpty()) {
 				Message message = null;
 				Boolean needRollback = false;
 				synchronized (recvdMessages) {
 					message = recvdMessages.peek();
-					if (message.sendTurn > this.turn) {
+					if (message == null || message.sendTurn > this.turn) {
 						break;
 					}
-					if (message.sendTurn < this.turn) {
+					if (message.sign == false) {
+						// An antimessage left in the queue has already
+						// missed its message there, so that message was
+						// either processed or has not arrived yet.
+						if (processedMessages.contains(message)) {
+							needRollback = true;
+						} else {
+							recvdMessages.poll();
+							orphanAntiMessages.add(message);
+							continue;
+						}
+					} else if (message.messageType == Message.HALO
+							|| message.messageType == Message.REVISE) {
+						// These are never stragglers in themselves; see below.
+						message = recvdMessages.poll();
+					} else if (message.sendTurn < this.turn) {
 						needRollback = true;
 					} else {
 						message = recvdMessages.poll();
-						if(message.sign == false) {
-							processedMessages.add(message);
-							continue;
-						}
 					}
 				}
 				if (needRollback) {
 					rollback(message.sendTurn);
-					return;
+					continue;
+				}
+				if (message.messageType == Message.HALO) {
+					RemoteEngine re = getPeer(message.id);
+					Halo halo = message.recvHalo();
+					halo.version = message.messageId;
+					if (re != null && !re.installHalo(halo)) {
+						// A turn we ran read this halo's cells before it
+						// arrived and guessed wrong.
+						rollback(halo.turn - 1);
+						re.installHalo(halo);
+					}
+					if (re != null && conservative) {
+						re.halos.headMap(halo.turn).clear();
+					}
+					continue;
+				}
+				if (message.messageType == Message.REVISE) {
+					RemoteEngine re = getPeer(message.id);
+					Message.Query revision = message.recvRevision();
+					if (re != null && re.revise(revision)
+							&& turn >= revision.turn) {
+						// A turn we ran read the answer this replaces.
+						rollback(revision.turn - 1);
+					}
+					continue;
 				}
 				switch (message.messageType) {
 				case Message.SENDAGENT:
 
-					ReceivedAgent newAgent = message.recvAgent();
+					ReceivedAgent newAgent = message.recvAgent(pool);
 					this.placeAgent(newAgent.x, newAgent.y, newAgent.agent);
-					this.processedMessages.add(message);
+					if (!conservative) {
+						this.processedMessages.add(message);
+					}
 					break;
 				case Message.ENDTURN:
 					break;
@@ -312,41 +1500,75 @@ public class LocalEngine extends Engine {
 		}
 	}
 
-	private void sendCells(RemoteEngine remote) {
-		// TODO: Send agents along with cells.
-		int rWidth = this.width / 2;
-		int rHeight = this.height;
-		int rTlx = this.width - rWidth;
-		int rTly = 0;
-
-		this.width = this.width - rWidth;
-		Message.sendOfferHelpResp(remote.out, rTlx, rTly, rWidth, rHeight,
-				globalWidth, globalHeight, tlx, tly, width, height);
-		for (int i = rTlx; i < rWidth; i++) {
-			for (int j = rTly; j < rHeight; j++) {
-				LocalCell cell = getCell(i, j);
-				for (Agent a : cell.agents) {
-					Message message = new Message(this.turn, true, remote
-							.getID());
-					message.sendAgent( cell.getX(), cell.getY(), a);
-					message.sendMessage(remote.out);
-				}
+	/*
+	 * Our local time: the earliest turn that something we have not finished
+	 * with could still change, that is the earliest send turn among the
+	 * messages we have not processed and those our peers have not acked,
+	 * and at most the current turn.
+	 */
+	int localTime() {
+		int time = Integer.MAX_VALUE;
+		synchronized (recvdMessages) {
+			if (!recvdMessages.isEmpty()) {
+				time = recvdMessages.peek().sendTurn;
 			}
 		}
-		remote.setCoordinates(rTlx, rTly, rWidth, rHeight);
-		this.peerList.add(remote);
-		// TODO: Actually change the size of the data structure that
-		// holds the cells.
-		gui.dispose();
-		gui = new CellGrid(height, width, tlx, tly);
+		for (RemoteEngine re : peerList) {
+			time = Math.min(time, re.unackedTime());
+		}
+		if (time > turn
+				&& (turn >= stopTurn || checkpoint.due()
+						|| turn >= handover.holdTurn)) {
+			// We have stopped and are waiting on nothing from this turn, so
+			// anything we do from now on will be in a later one. Once every
+			// engine says so, this turn is committed.
+			return Math.min(time, turn + 1);
+		}
+		return Math.min(time, turn);
+	}
+
+	public int getEpoch() {
+		return epoch;
+	}
+
+	public EngineStats getStats() {
+		return stats;
+	}
+
+	public long newAgentId() {
+		return ((long) ordinal << ORDINAL_SHIFT) | ++agentCounter;
+	}
+
+	public long newMessageId() {
+		return ((long) ordinal << ORDINAL_SHIFT) | ++messageCounter;
+	}
+
+	public void setOrdinal(int ordinal) {
+		this.ordinal = ordinal;
+	}
+
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	public void setConservative(boolean conservative) {
+		this.conservative = conservative;
+	}
 
+	public boolean isConservative() {
+		return conservative;
 	}
 
-	public int minLocalTime() {
-		final int unprocessedTime = recvdMessages.isEmpty() ? turn : recvdMessages.peek().sendTurn;
-		final int unackTime = unackMessages.isEmpty() ? turn : unackMessages.peek().sendTurn;
-		System.out.println("Unprocessed time: " + unprocessedTime + "; unack time: " + unackTime);
-		return Math.min(Math.min(unprocessedTime, unackTime), turn);
+	public void setHaloWidth(int haloWidth) {
+		this.haloWidth = haloWidth;
+		for (RemoteEngine re : peerList) {
+			re.haloCells = null;
+		}
+	}
+
+	public void setWindow(int turns) {
+		window.setWindow(turns);
+		stats.setWindow(window.getWindow());
 	}
 	
 	public void storeAntimessage(Message message) {
@@ -356,14 +1578,6 @@ public class LocalEngine extends Engine {
 		}
 	}
 	
-	public void storeUnack(Message message) {
-		Message m = (Message) message.clone();
-		m.sign = !m.sign;
-		synchronized (unackMessages) {
-			unackMessages.offer(m);
-		}
-	}
-
 	public static void main(String[] args) {
 
 		int globalWidth = 10;
@@ -372,6 +1586,21 @@ public class LocalEngine extends Engine {
 		LocalEngine engine = null;
 		boolean isClient = false;
 		String IP = null;
+		int optimism = OptimismWindow.DEFAULT_WINDOW;
+		boolean conservative = false;
+		int haloWidth = 0;
+		boolean sparse = false;
+		int helpers = 1;
+		boolean find = false;
+		boolean advertise = false;
+		String population = null;
+		ArrayList<String> snapshots = new ArrayList<String>();
+		String dump = null;
+		int checkpointEvery = 0;
+		String checkpointDir = null;
+		String restore = null;
+		int turns = 50;
+		int leave = -1;
 		
 		int i=0;
 		String arg;
@@ -382,7 +1611,7 @@ public class LocalEngine extends Engine {
 			
 			if(arg.equals("--help")){
 				System.out.println("Usage: LocalEngine: [--isClient] IPAddress [--setSize] width height " +
-				"[--port] portNum");
+				"[--port] portNum [--window] turns [--sync] optimistic|conservative [--halo] width [--sparse] [--helpers] n [--advertise] [--find] [--population] file [--snapshot] file [--dump] file [--checkpoint] n dir [--restore] dir [--turns] n [--leave] n");
 				System.exit(0);
 			}
 			else if(arg.equals("--isClient")){
@@ -418,9 +1647,138 @@ public class LocalEngine extends Engine {
 					System.exit(0);
 				}
 			}
+			else if(arg.equals("--window")){
+				if(i < args.length){
+					optimism = Integer.parseInt(args[i++]);
+				}
+				else{
+					System.out.println("--window requires [turns]");
+					System.exit(0);
+				}
+			}
+			//both engines must be started with the same mode
+			else if(arg.equals("--sync")){
+				if(i < args.length){
+					String mode = args[i++];
+					if(mode.equals("conservative")){
+						conservative = true;
+					}
+					else if(!mode.equals("optimistic")){
+						System.err.println("--sync requires [optimistic|conservative]");
+						System.exit(0);
+					}
+				}
+				else{
+					System.err.println("--sync requires [optimistic|conservative]");
+					System.exit(0);
+				}
+			}
+			//both engines must be started with the same width
+			else if(arg.equals("--halo")){
+				if(i < args.length){
+					haloWidth = Integer.parseInt(args[i++]);
+				}
+				else{
+					System.out.println("--halo requires [width]");
+					System.exit(0);
+				}
+			}
+			//keeps only the cells near agents, for huge worlds
+			else if(arg.equals("--sparse")){
+				sparse = true;
+			}
+			//the server advertises itself through Zeroconf
+			else if(arg.equals("--advertise")){
+				advertise = true;
+			}
+			//join whichever server Zeroconf finds, instead of --isClient
+			else if(arg.equals("--find")){
+				find = true;
+			}
+			//the server places these agents instead of its default ones
+			else if(arg.equals("--population")){
+				if(i < args.length){
+					population = args[i++];
+				}
+				else{
+					System.out.println("--population requires [file]");
+					System.exit(0);
+				}
+			}
+			//the server starts from these snapshots; may be repeated
+			else if(arg.equals("--snapshot")){
+				if(i < args.length){
+					snapshots.add(args[i++]);
+				}
+				else{
+					System.out.println("--snapshot requires [file]");
+					System.exit(0);
+				}
+			}
+			//write our part of the world here once the last turn is committed
+			else if(arg.equals("--dump")){
+				if(i < args.length){
+					dump = args[i++];
+				}
+				else{
+					System.out.println("--dump requires [file]");
+					System.exit(0);
+				}
+			}
+			//write a checkpoint every n turns; every engine must use the same n
+			else if(arg.equals("--checkpoint")){
+				if((i+1)<args.length){
+					checkpointEvery = Integer.parseInt(args[i++]);
+					checkpointDir = args[i++];
+				}
+				else{
+					System.out.println("--checkpoint requires [n dir]");
+					System.exit(0);
+				}
+			}
+			//the server starts from the latest whole checkpoint in dir
+			else if(arg.equals("--restore")){
+				if(i < args.length){
+					restore = args[i++];
+				}
+				else{
+					System.out.println("--restore requires [dir]");
+					System.exit(0);
+				}
+			}
+			//how many turns to run from where we start
+			else if(arg.equals("--turns")){
+				if(i < args.length){
+					turns = Integer.parseInt(args[i++]);
+				}
+				else{
+					System.out.println("--turns requires [n]");
+					System.exit(0);
+				}
+			}
+			//hand our region to a neighbour and leave after this many turns
+			else if(arg.equals("--leave")){
+				if(i < args.length){
+					leave = Integer.parseInt(args[i++]);
+				}
+				else{
+					System.out.println("--leave requires [n]");
+					System.exit(0);
+				}
+			}
+			//how many engines the server waits for before starting
+			else if(arg.equals("--helpers")){
+				if(i < args.length){
+					helpers = Integer.parseInt(args[i++]);
+				}
+				else{
+					System.out.println("--helpers requires [n]");
+					System.exit(0);
+				}
+			}
 			else{
 				System.out.println("Usage: LocalEngine: [--isClient] IPAddress [--setSize] width height " +
-				"[--port] portNum");
+				"[--port] portNum [--window] turns [--sync] optimistic|conservative [--halo] width [--sparse] [--helpers] n [--advertise] [--find] [--population] file [--snapshot] file [--dump] file [--checkpoint] n dir [--restore] dir [--turns] n [--leave] n");
 				System.out.println("Default values will be used.");
 				//could just System.exit(0);  if defaults aren't to be used
 			}
@@ -428,47 +1786,54 @@ public class LocalEngine extends Engine {
 		try {
 
 			// Client case
-			if (isClient) {
-				// Use multicast instead.
-				InetAddress other = InetAddress.getByName(IP);
-				Socket socket = new Socket(other, port);
-				// TODO Remove magic number.
-				RemoteEngine server = new RemoteEngine(socket);
-				Message.sendOfferHelpReq(server.out);
-				OfferHelpResponse r = Message.recvOfferHelpResp(server.in);
-				engine = new LocalEngine(r.getTlx(), r.getTly(), r.getWidth(), r.getHeight(), r
-						.getGlobalWidth(), r.getGlobalHeight());
-				server.setEngine(engine);
-				engine.peerList.add(server);
-				server.setCoordinates(r.sendertlx, r.sendertly, r.senderw,
-						r.senderh);
-				server.listen();
-				// TODO: Get agents from server.
+			if (isClient || find) {
+				if (find) {
+					engine = Admission.join(ZeroconfPeerFinder.create(), true,
+							sparse, conservative);
+				} else {
+					engine = Admission.join(new Socket(InetAddress
+							.getByName(IP), port), true, sparse, conservative);
+				}
 			}
 
 			// Server case
 			else {
 				// TODO: Don't hard code everything.
 				engine = new LocalEngine(0, 0, globalWidth, globalHeight,
-						globalWidth, globalHeight);
+						globalWidth, globalHeight, true, sparse);
+				engine.setConservative(conservative);
+				if (restore != null) {
+					for (File f : Checkpoint.latest(new File(restore),
+							globalWidth, globalHeight)) {
+						snapshots.add(f.getPath());
+					}
+				}
+				// Placed first, so that the world is divided by load.
+				for (String snapshot : snapshots) {
+					engine.checkpoint.load(new File(snapshot));
+				}
+				if (population != null) {
+					engine.loadPopulation(new File(population));
+				} else if (snapshots.isEmpty()) {
+					engine.placeAgents(10);
+				}
 				ServerSocket serverSocket = new ServerSocket(port);
-				Socket clientSocket = serverSocket.accept();
-				// TODO Remove magic number.
-				RemoteEngine client = new RemoteEngine(clientSocket, engine);
-				// This is to read the offerHelpReq message. This
-				// should be in a method.
-				if (client.in.read() != Message.OFFERHELP)
-					throw new Exception("Expected offer help request.");
-				client.listen();
-				// TODO: Use a smart algorithm to figure out what
-				// coordinates to assign the other node.
-				engine.sendCells(client);
-
-				// We probably need some kind of ACK here.
-
-				engine.placeAgents(10);
-
+				engine.admission.coordinate(serverSocket, helpers,
+						advertise ? ZeroconfPeerFinder.create() : null);
+				serverSocket.close();
+			}
+			engine.setStopTurn(engine.turn + turns);
+			if (leave >= 0) {
+				engine.setLeaveTurn(engine.turn + leave);
+			}
+			if (dump != null) {
+				engine.checkpoint.setDumpFile(new File(dump));
+			}
+			if (checkpointDir != null) {
+				engine.checkpoint.setEvery(new File(checkpointDir), checkpointEvery);
 			}
+			engine.setWindow(optimism);
+			engine.setHaloWidth(haloWidth);
 			engine.print();
 			engine.go();
 		} catch (Exception e) {
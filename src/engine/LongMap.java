@@ -0,0 +1,146 @@
+package engine;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map from long keys to values that stores the keys in a plain
+ * long[] instead of boxing them, using open addressing with linear probing.
+ * Removal shifts the entries after it back, so there are no tombstones and
+ * lookups never slow down as entries come and go. Not synchronized.
+ */
+public class LongMap<V> implements Iterable<V> {
+
+	private long[] keys;
+	private Object[] values;
+	private int size;
+
+	public LongMap() {
+		keys = new long[16];
+		values = new Object[16];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * Spreads the bits of the key, since ours are often two small ints
+	 * packed together.
+	 */
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+	}
+
+	// Where the key is, or the empty slot where it would go.
+	private int find(long key) {
+		int i = slot(key);
+		while (values[i] != null && keys[i] != key) {
+			i = (i + 1) & (keys.length - 1);
+		}
+		return i;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		return (V) values[find(key)];
+	}
+
+	/**
+	 * @return the value the key had before, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null value");
+		}
+		int i = find(key);
+		V old = (V) values[i];
+		keys[i] = key;
+		values[i] = value;
+		if (old == null && ++size > keys.length / 2) {
+			grow();
+		}
+		return old;
+	}
+
+	/**
+	 * @return the value the key had, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = find(key);
+		V old = (V) values[i];
+		if (old == null) {
+			return null;
+		}
+		values[i] = null;
+		size--;
+		// Move back any entry that probed past the slot we just emptied.
+		int mask = keys.length - 1;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == null) {
+				return old;
+			}
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int j = find(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Goes through the values in no particular order. The map must not be
+	 * changed meanwhile.
+	 */
+	public Iterator<V> iterator() {
+		return new Iterator<V>() {
+			int next = advance(0);
+
+			private int advance(int i) {
+				while (i < values.length && values[i] == null) {
+					i++;
+				}
+				return i;
+			}
+
+			public boolean hasNext() {
+				return next < values.length;
+			}
+
+			@SuppressWarnings("unchecked")
+			public V next() {
+				if (next >= values.length) {
+					throw new NoSuchElementException();
+				}
+				V value = (V) values[next];
+				next = advance(next + 1);
+				return value;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
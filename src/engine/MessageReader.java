@@ -1,5 +1,6 @@
 package engine;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.PriorityQueue;
 
@@ -22,51 +23,105 @@ public class MessageReader implements Runnable {
 	public void run() {
 		while (true) {
 			try {
-				byte messageType = (byte) in.read();
+				int next = in.read();
+				if (next == -1) {
+					break;
+				}
+				byte messageType = (byte) next;
 				Message message = null;
 				switch (messageType) {
 				case Message.SENDAGENT:
 					message = new Message(engine.turn, messageType);
 					message.recvAgent(in);
-					message.ackMessage(sender.out);
+					engine.getStats().messageReceived();
 					synchronized (recvdMessages) {						
-						if(!recvdMessages.remove(message)) {
+						if(!recvdMessages.remove(message)
+								&& !engine.orphanAntiMessages.remove(message)) {
 							recvdMessages.add(message);
-						} else {
-							System.err.println("Message and antimessage annihilated");
+						} else if (engine.verbose) {
+							System.out.println("Message and antimessage annihilated");
 						}
 					}
+					// Ack only once the message counts towards our local
+					// time. Nothing is ever rolled back in conservative mode,
+					// so there the sender does not track acks.
+					if (!engine.isConservative()) {
+						sender.received(message.seq);
+					}
 					break;
-				case (~Message.SENDAGENT):
-					System.out.println("Got an ack of sendagent");
-					message = new Message(engine.turn, (byte)~messageType);
-					message.recvAgent(in);
-					synchronized(engine.unackMessages) {
-						if(engine.unackMessages.remove(message)) {
-							System.out.println("Removed unack message");
-						} else {
-							System.out.println("DID NOT remove unack message");
-						}
+				case Message.HALO:
+				case Message.REVISE:
+					message = new Message(engine.turn, messageType);
+					message.recvMessage(in);
+					message.id = sender.getID();
+					engine.getStats().messageReceived();
+					synchronized (recvdMessages) {
+						recvdMessages.add(message);
+					}
+					if (!engine.isConservative()) {
+						sender.received(message.seq);
 					}
 					break;
+				case Message.REGIONMAP:
+					engine.handover.regionMap(Message.recvRegionMap(in), sender.getID());
+					break;
+				case Message.HOLD:
+					engine.handover.hold(sender.getID(), Message.recvHold(in));
+					break;
+				case Message.REGIONTRANSFER:
+					engine.handover.regionTransfer(Message.recvRegionTransfer(in),
+							sender.getID());
+					break;
+				case Message.ACK:
+					sender.acked(Message.recvAck(in));
+					break;
+				case Message.FINDCELL:
+				case Message.GETAGENTINFO:
+					Message.Query query = Message.recvQuery(in, messageType);
+					query.id = sender.getID();
+					engine.getStats().messageReceived();
+					engine.queueQuery(query);
+					break;
+				case Message.CELLINFO:
+				case Message.AGENTINFO:
+					Message.Query reply = Message.recvQuery(in, messageType);
+					engine.getStats().messageReceived();
+					sender.answered(reply.requestId);
+					sender.putReply(reply);
+					break;
 				case Message.ENDTURN:
-					int turn = Message.recvEndTurn(in);
-					sender.turn = turn;
-					System.out.println("Received end turn: " + turn);
+					Message.EndTurn endTurn = Message.recvEndTurn(in);
+					synchronized (recvdMessages) {
+						sender.turn = endTurn.turn;
+					}
+					// The report counts everything it acks.
+					sender.acked(endTurn.ackSeq);
+					sender.reported();
+					engine.timeTable.merge(endTurn.times);
 					break;
 				default:
-					do{
-						System.out.println("Unknown Message type ");
-						System.out.println(messageType);
-						messageType = (byte)in.read();
-					}while(messageType != -1);
-					System.exit(0);
+					// Nothing after this can be read, but the engine and its
+					// other peers can carry on.
+					System.err.println("Unknown message type " + messageType
+							+ " from " + sender.getID()
+							+ "; closing the connection");
+					sender.close();
+					return;
 				}
-				if (messageType == -1) {
-					break;
-
+				if (!engine.isConservative()) {
+					sender.ackIfPaused();
+				}
+			} catch (IOException e) {
+				// Whether we hung up or the peer went away, there is no more
+				// to read.
+				if (!sender.isClosed()) {
+					e.printStackTrace();
 				}
+				break;
 			} catch (Exception e) {
+				if (sender.isClosed()) {
+					break;
+				}
 				e.printStackTrace();
 			}
 		}
@@ -0,0 +1,83 @@
+package engine;
+
+/**
+ * Bounds how far a LocalEngine may run ahead of the slowest engine it knows
+ * about. The window adapts in the style of Adaptive Time Warp: every
+ * adaptation period we look at how many of the executed turns were thrown
+ * away by rollbacks, which is how often we were rolled back times how far,
+ * so both count. If most were wasted the window gives back a quarter,
+ * and if few were it grows by half. In between it stays put: neighbours
+ * that trade agents every turn roll each other back now and then however
+ * close they run, so some waste is the price of any overlap at all.
+ */
+public class OptimismWindow {
+
+	public static final int DEFAULT_WINDOW = 10;
+	public static final int MIN_WINDOW = 1;
+	public static final int MAX_WINDOW = 1000;
+
+	// Number of executed turns between adjustments.
+	static final int PERIOD = 10;
+	// Fraction of executed turns that may be rolled back before we shrink.
+	static final double SHRINK_ABOVE = 0.5;
+	// Fraction of executed turns below which we grow.
+	static final double GROW_BELOW = 0.2;
+
+	private int window;
+	private final int minWindow;
+	private final int maxWindow;
+	private int periodTurns = 0;
+	private int periodRolledBack = 0;
+
+	public OptimismWindow() {
+		this(DEFAULT_WINDOW, MIN_WINDOW, MAX_WINDOW);
+	}
+
+	public OptimismWindow(int window, int minWindow, int maxWindow) {
+		this.minWindow = minWindow;
+		this.maxWindow = maxWindow;
+		this.window = clamp(window);
+	}
+
+	/**
+	 * @return true if an engine at turn may start the next turn when the
+	 *         slowest known engine is at floor.
+	 */
+	public boolean allows(int turn, int floor) {
+		return turn - floor < window;
+	}
+
+	public void turnExecuted() {
+		periodTurns++;
+		if (periodTurns >= PERIOD) {
+			adapt();
+		}
+	}
+
+	public void rolledBack(int depth) {
+		periodRolledBack += depth;
+	}
+
+	private void adapt() {
+		double wasted = (double) periodRolledBack / periodTurns;
+		if (wasted > SHRINK_ABOVE) {
+			window = clamp(window - Math.max(1, window / 4));
+		} else if (wasted < GROW_BELOW) {
+			window = clamp(window + Math.max(1, window / 2));
+		}
+		periodTurns = 0;
+		periodRolledBack = 0;
+	}
+
+	private int clamp(int w) {
+		return Math.max(minWindow, Math.min(maxWindow, w));
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	public void setWindow(int window) {
+		this.window = clamp(window);
+	}
+}
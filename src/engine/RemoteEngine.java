@@ -1,28 +1,117 @@
 package engine;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import net.CountingInputStream;
+import net.FrameOutputStream;
+import net.MemoryChannel;
 import net.Message;
+import net.OutboundQueue;
+import net.ShmRing;
 import world.Agent;
+import world.AgentInfo;
 import world.Cell;
+import world.Halo;
+import world.LocalCell;
 import world.RemoteCell;
 
 public class RemoteEngine extends Engine {
 
+	// How many bytes may wait to be sent to an engine before we hold back.
+	static final long HIGH_WATER = 1 << 20;
+	// We ack once the engine has paused sending, or after this many messages.
+	static final long ACK_EVERY = 64;
+
+	// Either the socket to this engine, or the channels to and from it if it
+	// is in the same JVM. If it is on the same machine we may have moved from
+	// the socket onto rings, keeping the socket's queue to close.
 	Socket socket;
-	InputStream in;
-	OutputStream out;
+	MemoryChannel toChannel;
+	MemoryChannel fromChannel;
+	ShmRing toRing;
+	ShmRing fromRing;
+	FrameOutputStream socketOut;
+	CountingInputStream in;
+	// Everything we send this engine goes through out.
+	FrameOutputStream out;
+	// Where this engine listens for other helpers, if it told us.
+	String listenHost = "";
+	int listenPort;
 	LocalEngine localEngine;
 	MessageReader reader;
 	Thread readerThread;
+	// The sequence numbers of the last message we sent this engine, of the
+	// last one it sent us that we have queued for handling, and of the last
+	// of those we acked. Guarded by out, except that seqReceived is only
+	// written by the reader.
+	long seqSent = 0;
+	volatile long seqReceived = 0;
+	long seqAcked = 0;
+	// The messages this engine has not acked yet, oldest first, as {seq,
+	// send turn}; our requests it has not replied to yet, by ID, with their
+	// send turns; and how many of both there are for each send turn. Each
+	// holds our local time back to its send turn. Guarded by unacked.
+	LinkedList<long[]> unacked = new LinkedList<long[]>();
+	HashMap<Long, Integer> unanswered = new HashMap<Long, Integer>();
+	TreeMap<Integer, Integer> unackedTurns = new TreeMap<Integer, Integer>();
+	// Lowest send turn of the messages this engine acked since its last
+	// ENDTURN. Guarded by unacked.
+	int ackedSinceReport = Integer.MAX_VALUE;
+
+	// The halos this engine sent us, by the turn they describe, and which
+	// halo each of our turns read and where. Only our engine thread touches
+	// these.
+	TreeMap<Integer, Halo> halos = new TreeMap<Integer, Halo>();
+	HashMap<Integer, HaloRead> haloReads = new HashMap<Integer, HaloRead>();
+	// Our cells that this engine can see, or null until they are needed.
+	ArrayList<LocalCell> haloCells;
+
+	// This engine's replies to our findCell and getAgentInfo requests, by
+	// the turn they describe, so that each is only asked once a turn. Cells
+	// are keyed by position, field values by agent ID, position and field
+	// name. Only our engine thread touches these.
+	TreeMap<Integer, HashMap<Long, Answer>> cellCache = new TreeMap<Integer, HashMap<Long, Answer>>();
+	TreeMap<Integer, HashMap<String, Answer>> fieldCache = new TreeMap<Integer, HashMap<String, Answer>>();
+	// The requests we are waiting on, and the replies to them that have
+	// arrived but have not been collected yet. Guarded by replies.
+	HashSet<Long> pending = new HashSet<Long>();
+	HashMap<Long, Message.Query> replies = new HashMap<Long, Message.Query>();
+	// The requests of this engine's that we have answered, by turn. If we
+	// roll back past one we answer it again. Only our engine thread touches
+	// this.
+	TreeMap<Integer, ArrayList<Message.Query>> served = new TreeMap<Integer, ArrayList<Message.Query>>();
+
+	static class HaloRead {
+		Halo halo;
+		HashSet<Long> cells = new HashSet<Long>();
+	}
+
+	// A cached reply. An answer that none of our turns since the last
+	// rollback has read can change without anything being run again.
+	static class Answer {
+		List<AgentInfo> agents;
+		Integer value;
+		boolean read = true;
+	}
 
 	public RemoteEngine(Socket socket) {
 		this.socket = socket;
 		try {
-			this.out = socket.getOutputStream();
-			this.in = socket.getInputStream();
+			this.out = new OutboundQueue(socket.getOutputStream(), "writer-"
+					+ socket.getRemoteSocketAddress());
+			this.in = new CountingInputStream(socket.getInputStream());
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -34,28 +123,520 @@ public class RemoteEngine extends Engine {
 		this.localEngine = localEngine;
 	}
 
+	/**
+	 * Connects to an engine in the same JVM: we send on one channel and
+	 * receive on the other, which the engine must use the other way round.
+	 */
+	public RemoteEngine(MemoryChannel to, MemoryChannel from,
+			LocalEngine localEngine) {
+		this.toChannel = to;
+		this.fromChannel = from;
+		this.out = to.getOutputStream();
+		this.in = new CountingInputStream(from.getInputStream());
+		this.localEngine = localEngine;
+	}
+
+	/**
+	 * Moves this connection onto shared memory rings, once both sides have
+	 * agreed to in the OFFERHELP handshake. Nothing more goes over the
+	 * socket, but it stays open until we close.
+	 */
+	void useRings(ShmRing[] rings) {
+		toRing = rings[0];
+		fromRing = rings[1];
+		socketOut = out;
+		out = new OutboundQueue(toRing.getOutputStream(), "shm-writer-"
+				+ socket.getRemoteSocketAddress());
+		in = new CountingInputStream(fromRing.getInputStream());
+	}
+
 	public void setEngine(LocalEngine engine) {
 		this.localEngine = engine;
 	}
 
+	public LocalEngine getLocalEngine() {
+		return localEngine;
+	}
+
 	public void listen() {
 		reader = new MessageReader(localEngine, this);
 		readerThread = new Thread(reader);
 		readerThread.start();
 	}
 
+	/**
+	 * Sends a message with the next sequence number. If it is tracked it
+	 * holds our local time back until this engine acks it.
+	 */
+	void send(Message message, boolean track) {
+		synchronized (out) {
+			message.seq = ++seqSent;
+			if (track) {
+				synchronized (unacked) {
+					unacked.add(new long[] { message.seq, message.sendTurn });
+					count(message.sendTurn, 1);
+				}
+			}
+			message.sendMessage(out);
+		}
+	}
+
+	// Guarded by unacked.
+	private void count(int sendTurn, int delta) {
+		Integer n = unackedTurns.get(sendTurn);
+		int left = (n == null ? 0 : n) + delta;
+		if (left == 0) {
+			unackedTurns.remove(sendTurn);
+		} else {
+			unackedTurns.put(sendTurn, left);
+		}
+	}
+
+	/**
+	 * This engine has received everything we sent it up to seq.
+	 */
+	void acked(long seq) {
+		synchronized (unacked) {
+			while (!unacked.isEmpty() && unacked.getFirst()[0] <= seq) {
+				int sendTurn = (int) unacked.removeFirst()[1];
+				count(sendTurn, -1);
+				// Until this engine next reports its time, its report may
+				// not include this message yet.
+				ackedSinceReport = Math.min(ackedSinceReport, sendTurn);
+			}
+		}
+	}
+
+	/**
+	 * This engine's latest report includes everything it has acked.
+	 */
+	void reported() {
+		synchronized (unacked) {
+			ackedSinceReport = Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * @return the lowest send turn among what this engine may not have
+	 *         counted in its time yet, or MAX_VALUE.
+	 */
+	int unackedTime() {
+		synchronized (unacked) {
+			int time = ackedSinceReport;
+			if (!unackedTurns.isEmpty()) {
+				time = Math.min(time, unackedTurns.firstKey());
+			}
+			return time;
+		}
+	}
+
+	boolean allAcked() {
+		synchronized (unacked) {
+			return unackedTurns.isEmpty();
+		}
+	}
+
+	/**
+	 * Called by the reader once a message from this engine is queued for
+	 * handling, and so counts towards our local time.
+	 */
+	void received(long seq) {
+		seqReceived = seq;
+		synchronized (out) {
+			if (seq - seqAcked >= ACK_EVERY) {
+				sendAck();
+			}
+		}
+	}
+
+	/**
+	 * Called by the reader after each message. Acks are sent once this
+	 * engine pauses, so a burst of messages costs one.
+	 */
+	void ackIfPaused() {
+		try {
+			if (in.available() > 0) {
+				return;
+			}
+		} catch (IOException e) {
+			return;
+		}
+		synchronized (out) {
+			sendAck();
+		}
+	}
+
+	// Guarded by out.
+	private void sendAck() {
+		if (seqReceived > seqAcked) {
+			seqAcked = seqReceived;
+			Message.sendAck(out, seqAcked);
+		}
+	}
+
+	/**
+	 * Reports our time, acking everything received so far along the way.
+	 * The time is worked out while holding out, so that everything acked
+	 * before the report is counted in it.
+	 */
+	void sendEndTurn(int time, Map<String, int[]> times) {
+		synchronized (out) {
+			seqAcked = seqReceived;
+			Message.sendEndTurn(out, time, seqAcked, times);
+		}
+	}
+
+	public void close() {
+		out.close();
+		if (toRing != null) {
+			toRing.close();
+			fromRing.close();
+			socketOut.close();
+		}
+		if (socket == null) {
+			fromChannel.close();
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public boolean isClosed() {
+		if (fromRing != null) {
+			return fromRing.isClosed();
+		}
+		if (socket == null) {
+			return fromChannel.isClosed();
+		}
+		return socket.isClosed();
+	}
+
+	/**
+	 * @return the agents in one of this engine's border cells as they were
+	 *         at the start of the given turn. If that turn's halo has not
+	 *         arrived yet we guess that nothing has changed since the last
+	 *         one, and remember the guess so it can be checked.
+	 */
+	List<AgentInfo> readHalo(int turn, int x, int y, boolean track) {
+		Map.Entry<Integer, Halo> e = halos.floorEntry(turn);
+		Halo halo = e == null ? null : e.getValue();
+		long key = Halo.key(x, y);
+		if (track) {
+			HaloRead read = haloReads.get(turn);
+			if (read == null) {
+				read = new HaloRead();
+				read.halo = halo;
+				haloReads.put(turn, read);
+			}
+			read.cells.add(key);
+		}
+		if (halo == null) {
+			return new ArrayList<AgentInfo>();
+		}
+		return halo.get(key);
+	}
+
+	/**
+	 * @return false if one of our turns has already read something this
+	 *         halo disagrees with, and so has to be run again.
+	 */
+	boolean installHalo(Halo halo) {
+		Halo installed = halos.get(halo.turn);
+		if (installed != null && installed.version > halo.version) {
+			return true;
+		}
+		halos.put(halo.turn, halo);
+		HaloRead read = haloReads.get(halo.turn);
+		if (read == null) {
+			return true;
+		}
+		for (Long key : read.cells) {
+			if (!Halo.same(read.halo, halo, key)) {
+				return false;
+			}
+		}
+		read.halo = halo;
+		return true;
+	}
+
+	int latestHaloTurn() {
+		return halos.isEmpty() ? -1 : halos.lastKey();
+	}
+
+	/**
+	 * Forgets the reads of the turns after the one we rolled back to.
+	 */
+	void forgetHaloReads(int turn) {
+		Iterator<Integer> it = haloReads.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next() > turn) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops what can no longer be read or checked: the reads of turns
+	 * before minTurn, and every halo older than the one minTurn would read.
+	 */
+	void fossilCollectHalos(int minTurn) {
+		Iterator<Integer> it = haloReads.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next() < minTurn) {
+				it.remove();
+			}
+		}
+		Integer keep = halos.floorKey(minTurn);
+		if (keep != null) {
+			halos.headMap(keep).clear();
+		}
+	}
+
+	private static String fieldKey(long agentId, int x, int y, String field) {
+		return agentId + "@" + x + "," + y + "." + field;
+	}
+
+	private static <K> Answer get(TreeMap<Integer, HashMap<K, Answer>> cache,
+			int turn, K key) {
+		HashMap<K, Answer> answers = cache.get(turn);
+		return answers == null ? null : answers.get(key);
+	}
+
+	private static <K> Answer put(TreeMap<Integer, HashMap<K, Answer>> cache,
+			int turn, K key) {
+		HashMap<K, Answer> answers = cache.get(turn);
+		if (answers == null) {
+			answers = new HashMap<K, Answer>();
+			cache.put(turn, answers);
+		}
+		Answer answer = new Answer();
+		answers.put(key, answer);
+		return answer;
+	}
+
+	/**
+	 * @return the cached agents in one of this engine's cells at the start of
+	 *         the given turn, or null if we have not asked.
+	 */
+	List<AgentInfo> readCell(int turn, int x, int y) {
+		Answer answer = get(cellCache, turn, Halo.key(x, y));
+		if (answer == null) {
+			return null;
+		}
+		answer.read = true;
+		return answer.agents;
+	}
+
+	void cacheCell(Message.Query reply) {
+		put(cellCache, reply.turn, Halo.key(reply.x, reply.y)).agents = reply.agents;
+	}
+
+	/**
+	 * @return the cached answer about one of this engine's agents, whose
+	 *         value may be null, or null if we have not asked.
+	 */
+	Answer readField(int turn, long agentId, int x, int y, String field) {
+		Answer answer = get(fieldCache, turn, fieldKey(agentId, x, y, field));
+		if (answer != null) {
+			answer.read = true;
+		}
+		return answer;
+	}
+
+	void cacheField(int turn, long agentId, int x, int y, String field,
+			Integer value) {
+		put(fieldCache, turn, fieldKey(agentId, x, y, field)).value = value;
+	}
+
+	/**
+	 * Replaces a cached reply with this engine's new answer, if we still
+	 * have it.
+	 * 
+	 * @return true if the answer changed and one of our turns read it, in
+	 *         which case that turn has to be run again.
+	 */
+	boolean revise(Message.Query revision) {
+		if (revision.type == Message.CELLINFO) {
+			Answer answer = get(cellCache, revision.turn, Halo.key(revision.x,
+					revision.y));
+			if (answer == null) {
+				return false;
+			}
+			// The order of the agents in a cell does not matter.
+			boolean changed = !new HashSet<AgentInfo>(answer.agents)
+					.equals(new HashSet<AgentInfo>(revision.agents));
+			answer.agents = revision.agents;
+			return changed && answer.read;
+		}
+		Answer answer = get(fieldCache, revision.turn, fieldKey(
+				revision.agentId, revision.x, revision.y, revision.field));
+		if (answer == null) {
+			return false;
+		}
+		boolean changed = answer.value == null ? revision.value != null
+				: !answer.value.equals(revision.value);
+		answer.value = revision.value;
+		return changed && answer.read;
+	}
+
+	/**
+	 * Forgets which answers the turns after the one we rolled back to read.
+	 * The answers themselves stay cached.
+	 */
+	void forgetCacheReads(int turn) {
+		for (HashMap<Long, Answer> answers : cellCache.tailMap(turn, false)
+				.values()) {
+			for (Answer answer : answers.values()) {
+				answer.read = false;
+			}
+		}
+		for (HashMap<String, Answer> answers : fieldCache.tailMap(turn, false)
+				.values()) {
+			for (Answer answer : answers.values()) {
+				answer.read = false;
+			}
+		}
+	}
+
+	void served(Message.Query q) {
+		ArrayList<Message.Query> queries = served.get(q.turn);
+		if (queries == null) {
+			queries = new ArrayList<Message.Query>();
+			served.put(q.turn, queries);
+		}
+		queries.add(q);
+	}
+
+	/**
+	 * @return the requests we answered about the turns after the one we
+	 *         rolled back to, which we forget until we answer them again.
+	 */
+	List<Message.Query> takeServedAfter(int turn) {
+		ArrayList<Message.Query> after = new ArrayList<Message.Query>();
+		SortedMap<Integer, ArrayList<Message.Query>> tail = served.tailMap(
+				turn, false);
+		for (ArrayList<Message.Query> queries : tail.values()) {
+			after.addAll(queries);
+		}
+		tail.clear();
+		return after;
+	}
+
+	void fossilCollectQueries(int minTurn) {
+		cellCache.headMap(minTurn).clear();
+		fieldCache.headMap(minTurn).clear();
+		served.headMap(minTurn).clear();
+	}
+
+	/**
+	 * Waits for the reply to a request. If it is tracked it holds our local
+	 * time back to sendTurn until the reply arrives, even if we stop
+	 * waiting for it.
+	 */
+	void expectReply(long requestId, int sendTurn, boolean track) {
+		synchronized (replies) {
+			pending.add(requestId);
+		}
+		if (track) {
+			synchronized (unacked) {
+				unanswered.put(requestId, sendTurn);
+				count(sendTurn, 1);
+			}
+		}
+	}
+
+	/**
+	 * A reply is the ack of its request.
+	 */
+	void answered(long requestId) {
+		synchronized (unacked) {
+			Integer sendTurn = unanswered.remove(requestId);
+			if (sendTurn != null) {
+				count(sendTurn, -1);
+			}
+		}
+	}
+
+	void putReply(Message.Query reply) {
+		synchronized (replies) {
+			if (!pending.contains(reply.requestId)) {
+				return;
+			}
+			replies.put(reply.requestId, reply);
+		}
+		localEngine.wakeUp();
+	}
+
+	/**
+	 * @return the reply to a request, or null if it has not arrived yet.
+	 */
+	Message.Query takeReply(long requestId) {
+		synchronized (replies) {
+			Message.Query reply = replies.remove(requestId);
+			if (reply != null) {
+				pending.remove(requestId);
+			}
+			return reply;
+		}
+	}
+
+	/**
+	 * Stops waiting for the replies to the requests of a turn we gave up on.
+	 */
+	void abandonRequests() {
+		synchronized (replies) {
+			pending.clear();
+			replies.clear();
+		}
+	}
+
+	@Override
+	public void setCoordinates(int tlx, int tly, int width, int height) {
+		super.setCoordinates(tlx, tly, width, height);
+		haloCells = null;
+	}
+
+	public long getBytesSent() {
+		return out.getBytesSent();
+	}
+
+	/**
+	 * @return whether we have queued so much for this engine that we should
+	 *         stop getting further ahead of it until the writer catches up.
+	 */
+	boolean isBackedUp() {
+		return out.getQueuedBytes() > HIGH_WATER;
+	}
+
+	public long getMaxQueuedBytes() {
+		return out.getMaxQueuedBytes();
+	}
+
+	public long getBytesReceived() {
+		return in.getCount();
+	}
+
+	/**
+	 * @return a handle on one of this engine's cells. Nothing is asked of
+	 *         the engine until an agent is added to the cell or looks into
+	 *         it; what is in it is read from its halo or with a findCell
+	 *         request, as look() does.
+	 */
 	@Override
 	public Cell findCell(int x, int y) {
-		// TODO: Send a 'findCell' request to this remote machine using
-		// the message protocol.
 		return new RemoteCell(x, y, this);
 	}
 
+	/**
+	 * Sends an agent to one of this engine's cells in a sendAgent message.
+	 * In optimistic mode its antimessage is kept in case we roll back.
+	 */
 	public void sendAgent(RemoteCell newCell, Agent agent) {
-		// TODO: Send a 'sendAgent' request to the remote machine using
-		// the message protocol.
 		Message message = new Message(localEngine.turn, true, getID());
 		message.sendAgent(newCell.getX(), newCell.getY(), agent);
-		localEngine.sendMessage(message, out);
+		localEngine.sendMessage(message, this);
 	}
 }
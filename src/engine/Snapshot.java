@@ -0,0 +1,376 @@
+package engine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import net.Message.Region;
+import world.Agent;
+import world.AgentPool;
+import world.LocalCell;
+
+/**
+ * A binary file of agents and where they are: a scenario to start from, or
+ * a dump of the world at some turn to restart from. An engine maps it and
+ * reads only the cells in its own region, finding them through an index of
+ * the occupied cells sorted by row. Each class's name and fields are
+ * written once, in a dictionary, so an agent is read with no lookups by
+ * name.
+ *
+ * <pre>
+ * Header (128 bytes):
+ *   Magic     (4 bytes)  "CSNP"
+ *   Version   (4 bytes)
+ *   Turn      (4 bytes)
+ *   GlobalWidth, GlobalHeight (4 bytes each)
+ *   Classes   (4 bytes)
+ *   Cells     (4 bytes)
+ *   Agents    (8 bytes)
+ *   IndexOffset, DataOffset (8 bytes each)
+ *   Tlx, Tly, Width, Height (4 bytes each), the region it was taken from
+ * Dictionary, for each class:
+ *   Name (UTF) Fields (4 bytes) FieldName0 (UTF) FieldName1 ...
+ * Index, for each occupied cell by Y then X (20 bytes each):
+ *   X Y Agents (4 bytes each) Offset (8 bytes, from DataOffset)
+ * Data, for each agent in each cell in index order:
+ *   Class (2 bytes) Turn (4 bytes) AgentID (8 bytes) Value0 (4 bytes) ...
+ * </pre>
+ */
+public class Snapshot {
+
+	static final int MAGIC = 0x43534E50;
+	static final int VERSION = 2;
+	static final int HEADER = 128;
+	static final int INDEX_ENTRY = 20;
+	// How much of the data is mapped at once.
+	static final long WINDOW = 1 << 30;
+
+	// Sorts cells the way the index is.
+	static final Comparator<LocalCell> rowOrder = new Comparator<LocalCell>() {
+		public int compare(LocalCell a, LocalCell b) {
+			if (a.getY() != b.getY()) {
+				return a.getY() < b.getY() ? -1 : 1;
+			}
+			return a.getX() < b.getX() ? -1 : (a.getX() == b.getX() ? 0 : 1);
+		}
+	};
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int turn;
+	private final int globalWidth;
+	private final int globalHeight;
+	private final int cellCount;
+	private final long agentCount;
+	private final long dataOffset;
+	private final Region region;
+	private final MappedByteBuffer index;
+	// Each class in the dictionary, and its fields as this JVM has them.
+	private final Class<?>[] classes;
+	private final Field[][] fields;
+	// The part of the data mapped now.
+	private MappedByteBuffer data;
+	private long dataStart;
+	private long dataEnd;
+
+	private Snapshot(RandomAccessFile file) throws IOException {
+		this.file = file;
+		channel = file.getChannel();
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				HEADER);
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Not a snapshot");
+		}
+		int version = header.getInt();
+		if (version != VERSION) {
+			throw new IOException("Snapshot version " + version
+					+ " is not supported");
+		}
+		turn = header.getInt();
+		globalWidth = header.getInt();
+		globalHeight = header.getInt();
+		int classCount = header.getInt();
+		cellCount = header.getInt();
+		agentCount = header.getLong();
+		long indexOffset = header.getLong();
+		dataOffset = header.getLong();
+		region = new Region(header.getInt(), header.getInt(), header.getInt(),
+				header.getInt());
+
+		ByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY,
+				HEADER, indexOffset - HEADER);
+		classes = new Class<?>[classCount];
+		fields = new Field[classCount][];
+		for (int i = 0; i < classCount; i++) {
+			String name = readUTF(dictionary);
+			try {
+				classes[i] = Class.forName(name);
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Snapshot has agents of unknown class "
+						+ name);
+			}
+			fields[i] = new Field[dictionary.getInt()];
+			Field[] current = Agent.packedFields(classes[i]);
+			for (int j = 0; j < fields[i].length; j++) {
+				String field = readUTF(dictionary);
+				for (Field f : current) {
+					if (f.getName().equals(field)) {
+						fields[i][j] = f;
+					}
+				}
+			}
+		}
+		long indexSize = (long) cellCount * INDEX_ENTRY;
+		if (indexSize > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot index too big to map");
+		}
+		index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+				indexSize);
+	}
+
+	/**
+	 * Maps the header, dictionary and index of a snapshot. The agents are
+	 * mapped as they are loaded.
+	 */
+	public static Snapshot open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return new Snapshot(raf);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the file. What is mapped stays mapped until it is collected.
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private static String readUTF(ByteBuffer in) throws IOException {
+		byte[] bytes = new byte[in.getShort() & 0xffff];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	public int getTurn() {
+		return turn;
+	}
+
+	public int getGlobalWidth() {
+		return globalWidth;
+	}
+
+	public int getGlobalHeight() {
+		return globalHeight;
+	}
+
+	public long getAgentCount() {
+		return agentCount;
+	}
+
+	/**
+	 * @return the region the agents were taken from.
+	 */
+	public Region getRegion() {
+		return region;
+	}
+
+	/**
+	 * Places the agents in the snapshot that are in the engine's region.
+	 *
+	 * @return how many there were.
+	 */
+	public long load(LocalEngine engine) throws IOException {
+		AgentPool pool = engine.getAgentPool();
+		long loaded = 0;
+		for (int y = engine.tly; y < engine.tly + engine.height; y++) {
+			int i = find(engine.tlx, y);
+			while (i < cellCount) {
+				int at = i * INDEX_ENTRY;
+				int x = index.getInt(at);
+				if (index.getInt(at + 4) != y
+						|| x >= engine.tlx + engine.width) {
+					break;
+				}
+				int agents = index.getInt(at + 8);
+				long offset = index.getLong(at + 12);
+				// The cell's agents end where the next cell's start.
+				long end = i + 1 < cellCount ? index.getLong(at
+						+ INDEX_ENTRY + 12) : -1;
+				ByteBuffer in = data(offset, end);
+				LocalCell cell = engine.getCell(x, y);
+				for (int k = 0; k < agents; k++) {
+					int c = in.getShort();
+					Agent agent;
+					try {
+						agent = pool.get(classes[c]);
+					} catch (Exception e) {
+						throw new IOException("Cannot make a "
+								+ classes[c].getName() + ": " + e);
+					}
+					agent.readPacked(in, fields[c]);
+					cell.add(agent);
+				}
+				loaded += agents;
+				i++;
+			}
+		}
+		return loaded;
+	}
+
+	/*
+	 * The first cell in the index at or after (x, y).
+	 */
+	private int find(int x, int y) {
+		int lo = 0;
+		int hi = cellCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int at = mid * INDEX_ENTRY;
+			int my = index.getInt(at + 4);
+			int mx = index.getInt(at);
+			if (my < y || (my == y && mx < x)) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/*
+	 * The data from offset up to end, or to the end of the file if end is
+	 * -1, mapping more of it if need be.
+	 */
+	private ByteBuffer data(long offset, long end) throws IOException {
+		long fileEnd = channel.size() - dataOffset;
+		if (end < 0) {
+			end = fileEnd;
+		}
+		if (data == null || offset < dataStart || end > dataEnd) {
+			dataStart = offset;
+			dataEnd = Math.min(fileEnd, offset
+					+ Math.max(WINDOW, end - offset));
+			if (dataEnd - dataStart > Integer.MAX_VALUE) {
+				throw new IOException("Snapshot cell too big to map");
+			}
+			data = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset
+					+ dataStart, dataEnd - dataStart);
+		}
+		ByteBuffer in = data.duplicate();
+		in.position((int) (offset - dataStart));
+		in.limit((int) (end - dataStart));
+		return in;
+	}
+
+	/**
+	 * Writes the agents in these cells of a region, as they are now, to a
+	 * new snapshot. It is written beside the file and then renamed, so a
+	 * file of that name is only ever a whole snapshot.
+	 */
+	public static void write(File file, int turn, int globalWidth,
+			int globalHeight, Region region, List<LocalCell> cells)
+			throws IOException {
+		ArrayList<LocalCell> sorted = new ArrayList<LocalCell>();
+		for (LocalCell cell : cells) {
+			if (!cell.getAgents().isEmpty()) {
+				sorted.add(cell);
+			}
+		}
+		Collections.sort(sorted, rowOrder);
+
+		// Number the classes and work out where each cell's agents go.
+		HashMap<Class<?>, Integer> numbers = new HashMap<Class<?>, Integer>();
+		ArrayList<Field[]> classFields = new ArrayList<Field[]>();
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+		DataOutputStream dict = new DataOutputStream(dictionary);
+		long agents = 0;
+		long size = 0;
+		long[] offsets = new long[sorted.size()];
+		for (int i = 0; i < sorted.size(); i++) {
+			offsets[i] = size;
+			for (Agent a : sorted.get(i).getAgents()) {
+				Integer n = numbers.get(a.getClass());
+				if (n == null) {
+					n = numbers.size();
+					if (n > Short.MAX_VALUE) {
+						throw new IOException("Too many agent classes");
+					}
+					numbers.put(a.getClass(), n);
+					Field[] f = Agent.packedFields(a.getClass());
+					classFields.add(f);
+					dict.writeUTF(a.getClass().getName());
+					dict.writeInt(f.length);
+					for (Field field : f) {
+						dict.writeUTF(field.getName());
+					}
+				}
+				size += 2 + 4 + 8 + 4 * classFields.get(n).length;
+				agents++;
+			}
+		}
+		dict.flush();
+		long indexOffset = HEADER + dictionary.size();
+		long dataOffset = indexOffset + (long) sorted.size() * INDEX_ENTRY;
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(turn);
+			out.writeInt(globalWidth);
+			out.writeInt(globalHeight);
+			out.writeInt(numbers.size());
+			out.writeInt(sorted.size());
+			out.writeLong(agents);
+			out.writeLong(indexOffset);
+			out.writeLong(dataOffset);
+			out.writeInt(region.tlx);
+			out.writeInt(region.tly);
+			out.writeInt(region.width);
+			out.writeInt(region.height);
+			out.write(new byte[HEADER - out.size()]);
+			dictionary.writeTo(out);
+			for (int i = 0; i < sorted.size(); i++) {
+				LocalCell cell = sorted.get(i);
+				out.writeInt(cell.getX());
+				out.writeInt(cell.getY());
+				out.writeInt(cell.getAgents().size());
+				out.writeLong(offsets[i]);
+			}
+			for (LocalCell cell : sorted) {
+				for (Agent a : cell.getAgents()) {
+					out.writeShort(numbers.get(a.getClass()));
+					a.writePacked(out);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Windows will not rename over a file.
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Cannot rename " + temp + " to " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import world.AgentRanges;
+import world.LocalCell;
+
+/**
+ * Only the tiles that agents have been in, for regions far too big to hold
+ * a cell object for every position. A tile's arrays are made when one of its
+ * cells is first asked for and its cells' views as they are needed. Each
+ * tile keeps its agents in an AgentRanges of its own. Once none of
+ * its cells is occupied it is freed again at the next release(), and so is
+ * a tile that was only looked into and never occupied at all.
+ */
+public class SparseCellStore extends CellStore {
+
+	static class Chunk {
+		final long key;
+		final LocalCell[] cells = new LocalCell[TILE * TILE];
+		final AgentRanges agents = new AgentRanges(TILE * TILE);
+		int occupied = 0;
+
+		Chunk(long key) {
+			this.key = key;
+		}
+	}
+
+	final LongMap<Chunk> chunks = new LongMap<Chunk>();
+	// Chunks that are made or whose last occupied cell emptied since the
+	// last release().
+	final ArrayList<Chunk> emptied = new ArrayList<Chunk>();
+
+	public SparseCellStore(int tlx, int tly, int width, int height,
+			LocalEngine engine) {
+		super(tlx, tly, width, height, engine);
+	}
+
+	// The tile column and row, relative to our top left corner.
+	private static long key(int x, int y) {
+		return ((long) (x >> TILE_BITS) << 32) | (y >> TILE_BITS);
+	}
+
+	@Override
+	public LocalCell get(int x, int y) {
+		int rx = x - tlx;
+		int ry = y - tly;
+		long key = key(rx, ry);
+		Chunk chunk = chunks.get(key);
+		if (chunk == null) {
+			chunk = new Chunk(key);
+			chunks.put(key, chunk);
+			// Freed again unless something lands in it by then.
+			emptied.add(chunk);
+		}
+		int i = offset(rx, ry);
+		LocalCell cell = chunk.cells[i];
+		if (cell == null) {
+			cell = new LocalCell(x, y, this, chunk.agents, i);
+			cell.setStoreIndex(order(rx, ry));
+			chunk.cells[i] = cell;
+		}
+		return cell;
+	}
+
+	@Override
+	public LocalCell peek(int x, int y) {
+		int rx = x - tlx;
+		int ry = y - tly;
+		Chunk chunk = chunks.get(key(rx, ry));
+		return chunk == null ? null : chunk.cells[offset(rx, ry)];
+	}
+
+	@Override
+	public boolean isSparse() {
+		return true;
+	}
+
+	private Chunk chunkOf(LocalCell cell) {
+		return chunks.get(key(cell.getX() - tlx, cell.getY() - tly));
+	}
+
+	@Override
+	void occupied(LocalCell cell) {
+		chunkOf(cell).occupied++;
+	}
+
+	@Override
+	void emptied(LocalCell cell) {
+		Chunk chunk = chunkOf(cell);
+		if (--chunk.occupied == 0) {
+			emptied.add(chunk);
+		}
+	}
+
+	@Override
+	void release() {
+		for (Chunk chunk : emptied) {
+			// It may have filled up again since, or already be gone.
+			if (chunk.occupied == 0 && chunks.get(chunk.key) == chunk) {
+				chunks.remove(chunk.key);
+			}
+		}
+		emptied.clear();
+	}
+
+	/**
+	 * @return how many tiles are held.
+	 */
+	public int chunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * Goes through the cells that exist, a tile at a time, in no particular
+	 * order of tiles.
+	 */
+	public Iterator<LocalCell> iterator() {
+		final Iterator<Chunk> tiles = chunks.iterator();
+		return new Iterator<LocalCell>() {
+			LocalCell[] tile = new LocalCell[0];
+			int next = 0;
+			LocalCell cell = advance();
+
+			private LocalCell advance() {
+				while (true) {
+					while (next < tile.length) {
+						LocalCell c = tile[next++];
+						if (c != null) {
+							return c;
+						}
+					}
+					if (!tiles.hasNext()) {
+						return null;
+					}
+					tile = tiles.next().cells;
+					next = 0;
+				}
+			}
+
+			public boolean hasNext() {
+				return cell != null;
+			}
+
+			public LocalCell next() {
+				if (cell == null) {
+					throw new NoSuchElementException();
+				}
+				LocalCell c = cell;
+				cell = advance();
+				return c;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
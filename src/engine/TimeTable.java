@@ -0,0 +1,77 @@
+package engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The latest local time reported by every engine we have heard of, directly
+ * or through a neighbour. Each ENDTURN carries the sender's whole table, and
+ * every entry carries a sequence number from the engine it describes, so a
+ * stale report relayed around a ring of engines can never replace a newer
+ * one. The minimum over the table is our estimate of GVT.
+ */
+public class TimeTable {
+
+	private final HashMap<String, int[]> entries = new HashMap<String, int[]>();
+	private int ownSeq = 0;
+
+	/**
+	 * Records a new local time for this engine.
+	 */
+	public synchronized void setOwn(String id, int time) {
+		entries.put(id, new int[] { ++ownSeq, time });
+	}
+
+	/**
+	 * Takes every entry of a table received from a peer that is newer than
+	 * what we have.
+	 */
+	public synchronized void merge(Map<String, int[]> other) {
+		for (Map.Entry<String, int[]> e : other.entrySet()) {
+			int[] mine = entries.get(e.getKey());
+			if (mine == null || mine[0] < e.getValue()[0]) {
+				entries.put(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Holds GVT at 0 until we hear from an engine we know has joined. Its
+	 * first report replaces this.
+	 */
+	public synchronized void expect(String id) {
+		if (!entries.containsKey(id)) {
+			entries.put(id, new int[] { 0, 0 });
+		}
+	}
+
+	public synchronized void remove(String id) {
+		entries.remove(id);
+	}
+
+	/**
+	 * Marks an engine as gone for good. Nothing relayed about it can replace
+	 * this, so it stays gone however the news of it travels, and it no longer
+	 * holds GVT back.
+	 */
+	public synchronized void departed(String id) {
+		entries.put(id, new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE });
+	}
+
+	/**
+	 * @return the lowest time in the table, or fallback if it is lower.
+	 */
+	public synchronized int min(int fallback) {
+		int min = fallback;
+		for (int[] entry : entries.values()) {
+			if (entry[1] < min) {
+				min = entry[1];
+			}
+		}
+		return min;
+	}
+
+	public synchronized HashMap<String, int[]> snapshot() {
+		return new HashMap<String, int[]>(entries);
+	}
+}
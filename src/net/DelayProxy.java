@@ -0,0 +1,266 @@
+package net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A TCP proxy that makes a loopback connection behave like a slow network.
+ * Everything written on an accepted connection is forwarded to the target
+ * after a fixed latency plus a uniformly distributed jitter, and no faster
+ * than the bandwidth cap allows.
+ *
+ * TCP never reorders bytes within a connection, so neither does the proxy:
+ * a chunk is never delivered before the chunk in front of it. Reordering
+ * happens the way it does on a real network, between the two directions of
+ * a connection and between different connections, because every chunk on
+ * every link draws its own delay.
+ */
+public class DelayProxy {
+
+	private final InetSocketAddress target;
+	private final long latencyNanos;
+	private final long jitterNanos;
+	private final long bytesPerSecond;
+	private final Random random;
+
+	private ServerSocket serverSocket;
+	private final ArrayList<Socket> sockets = new ArrayList<Socket>();
+
+	/**
+	 * @param bytesPerSecond
+	 *            bandwidth cap in each direction, or 0 for none.
+	 */
+	public DelayProxy(InetSocketAddress target, long latencyMillis,
+			long jitterMillis, long bytesPerSecond, long seed) {
+		this.target = target;
+		this.latencyNanos = latencyMillis * 1000000L;
+		this.jitterNanos = jitterMillis * 1000000L;
+		this.bytesPerSecond = bytesPerSecond;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Starts accepting connections on the loopback interface.
+	 *
+	 * @param port
+	 *            the port to listen on, or 0 for any free port.
+	 * @return the port we are listening on.
+	 */
+	public int start(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress
+				.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "DelayProxy-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return serverSocket.getLocalPort();
+	}
+
+	private void acceptLoop() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket client = serverSocket.accept();
+				Socket server = new Socket(target.getAddress(), target.getPort());
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+				synchronized (sockets) {
+					sockets.add(client);
+					sockets.add(server);
+				}
+				new Link(client, server).start();
+				new Link(server, client).start();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		synchronized (sockets) {
+			for (Socket s : sockets) {
+				try {
+					s.close();
+				} catch (IOException e) {
+					// Already closed by the other end.
+				}
+			}
+		}
+	}
+
+	private long delay() {
+		long jitter = 0;
+		if (jitterNanos > 0) {
+			synchronized (random) {
+				jitter = (long) (random.nextDouble() * jitterNanos);
+			}
+		}
+		return latencyNanos + jitter;
+	}
+
+	private static class Chunk {
+		final long deliverAt;
+		final byte[] data;
+
+		Chunk(long deliverAt, byte[] data) {
+			this.deliverAt = deliverAt;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * One direction of a proxied connection: a reader thread timestamps what
+	 * it reads and a writer thread sends each chunk once its time has come.
+	 */
+	private class Link {
+		private final Socket from;
+		private final Socket to;
+		private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+		// When the simulated wire finishes sending what it already has.
+		private long wireFreeAt = 0;
+		private long lastDeliverAt = 0;
+
+		Link(Socket from, Socket to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		void start() {
+			String name = from.getPort() + "->" + to.getPort();
+			new Thread(new Runnable() {
+				public void run() {
+					read();
+				}
+			}, "DelayProxy-read " + name).start();
+			new Thread(new Runnable() {
+				public void run() {
+					write();
+				}
+			}, "DelayProxy-write " + name).start();
+		}
+
+		private void read() {
+			byte[] buffer = new byte[8192];
+			try {
+				InputStream in = from.getInputStream();
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					byte[] data = new byte[n];
+					System.arraycopy(buffer, 0, data, 0, n);
+					queue.put(new Chunk(deliveryTime(n), data));
+				}
+			} catch (Exception e) {
+				// The connection was closed; fall through and pass that on.
+			}
+			try {
+				queue.put(new Chunk(lastDeliverAt, null));
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private long deliveryTime(int bytes) {
+			long now = System.nanoTime();
+			long sent = now;
+			if (bytesPerSecond > 0) {
+				long start = Math.max(now, wireFreeAt);
+				wireFreeAt = start + bytes * 1000000000L / bytesPerSecond;
+				sent = wireFreeAt;
+			}
+			lastDeliverAt = Math.max(lastDeliverAt, sent + delay());
+			return lastDeliverAt;
+		}
+
+		private void write() {
+			try {
+				OutputStream out = to.getOutputStream();
+				while (true) {
+					Chunk chunk = queue.take();
+					long wait;
+					while ((wait = chunk.deliverAt - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					if (chunk.data == null) {
+						to.shutdownOutput();
+						return;
+					}
+					out.write(chunk.data);
+					out.flush();
+				}
+			} catch (Exception e) {
+				// The other end went away.
+			}
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: DelayProxy: --listen port --target host port "
+				+ "[--latency] ms [--jitter] ms [--bandwidth] bytesPerSecond [--seed] n");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) {
+		int listen = -1;
+		String host = null;
+		int port = -1;
+		long latency = 0;
+		long jitter = 0;
+		long bandwidth = 0;
+		long seed = System.nanoTime();
+
+		int i = 0;
+		try {
+			while (i < args.length) {
+				String arg = args[i++];
+				if (arg.equals("--listen")) {
+					listen = Integer.parseInt(args[i++]);
+				} else if (arg.equals("--target")) {
+					host = args[i++];
+					port = Integer.parseInt(args[i++]);
+				} else if (arg.equals("--latency")) {
+					latency = Long.parseLong(args[i++]);
+				} else if (arg.equals("--jitter")) {
+					jitter = Long.parseLong(args[i++]);
+				} else if (arg.equals("--bandwidth")) {
+					bandwidth = Long.parseLong(args[i++]);
+				} else if (arg.equals("--seed")) {
+					seed = Long.parseLong(args[i++]);
+				} else {
+					usage();
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage();
+		}
+		if (listen < 0 || host == null) {
+			usage();
+		}
+		try {
+			DelayProxy proxy = new DelayProxy(new InetSocketAddress(host, port),
+					latency, jitter, bandwidth, seed);
+			System.out.println("Proxying port " + proxy.start(listen) + " to "
+					+ host + ":" + port);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
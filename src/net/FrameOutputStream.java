@@ -0,0 +1,61 @@
+package net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+/**
+ * A stream that collects writes in memory and hands everything written
+ * since the last flush() on as one frame. Writing a message and flushing it
+ * happen while holding this stream's lock, so frames are handed on in the
+ * order they were finished.
+ */
+public abstract class FrameOutputStream extends OutputStream {
+
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	@Override
+	public synchronized void write(int b) {
+		pending.write(b);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		pending.write(b, off, len);
+	}
+
+	/**
+	 * Hands on everything written since the last flush.
+	 */
+	@Override
+	public synchronized void flush() {
+		if (pending.size() == 0) {
+			return;
+		}
+		byte[] frame = pending.toByteArray();
+		pending.reset();
+		queue(frame);
+	}
+
+	/**
+	 * Called with each frame, while holding this stream's lock.
+	 */
+	protected abstract void queue(byte[] frame);
+
+	/**
+	 * @return the bytes handed on that the other side has not got to yet.
+	 */
+	public abstract long getQueuedBytes();
+
+	public abstract long getMaxQueuedBytes();
+
+	/**
+	 * @return the bytes the other side has taken so far.
+	 */
+	public abstract long getBytesSent();
+
+	/**
+	 * Stops sending. Anything still queued is dropped.
+	 */
+	@Override
+	public abstract void close();
+}
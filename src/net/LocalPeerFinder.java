@@ -0,0 +1,81 @@
+package net;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Finds engines registered by other LocalPeerFinders in the same JVM, with
+ * no network at all. Stands in for ZeroconfPeerFinder when several engines
+ * run in one process, as in tests. Every engine registers as 127.0.0.1 on
+ * its PORT attribute.
+ */
+public class LocalPeerFinder extends PeerFinder {
+
+	// Shared by every finder in the JVM. Guarded by registered.
+	private static final ArrayList<Peer> registered = new ArrayList<Peer>();
+	private static final ArrayList<LocalPeerFinder> searching = new ArrayList<LocalPeerFinder>();
+	private static int names = 0;
+
+	private Peer registration;
+
+	@Override
+	public void register(Map<String, String> attributes) {
+		unregister();
+		Peer peer;
+		ArrayList<LocalPeerFinder> finders;
+		synchronized (registered) {
+			String port = attributes.get(PORT);
+			peer = new Peer("engine-" + names++, "127.0.0.1",
+					port == null ? -1 : Integer.parseInt(port), attributes);
+			registration = peer;
+			registered.add(peer);
+			finders = new ArrayList<LocalPeerFinder>(searching);
+		}
+		for (LocalPeerFinder f : finders) {
+			f.firePeerFound(peer);
+		}
+	}
+
+	@Override
+	public void unregister() {
+		Peer lost;
+		ArrayList<LocalPeerFinder> finders;
+		synchronized (registered) {
+			if (registration == null) {
+				return;
+			}
+			lost = registration;
+			registered.remove(lost);
+			registration = null;
+			finders = new ArrayList<LocalPeerFinder>(searching);
+		}
+		for (LocalPeerFinder f : finders) {
+			f.firePeerLost(lost);
+		}
+	}
+
+	/**
+	 * Reports every engine registered so far, then each one as it registers.
+	 */
+	@Override
+	public void startSearching() {
+		ArrayList<Peer> found;
+		synchronized (registered) {
+			if (searching.contains(this)) {
+				return;
+			}
+			searching.add(this);
+			found = new ArrayList<Peer>(registered);
+		}
+		for (Peer p : found) {
+			firePeerFound(p);
+		}
+	}
+
+	@Override
+	public void stopSearching() {
+		synchronized (registered) {
+			searching.remove(this);
+		}
+	}
+}
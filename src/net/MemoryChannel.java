@@ -0,0 +1,165 @@
+package net;
+
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A one-way connection between two engines in the same JVM. The sender's
+ * frames are handed straight to the receiver's reader through a lock-free
+ * queue, so there are no sockets, no system calls, no writer thread and no
+ * copying beyond the frame itself. A message is still written out as bytes
+ * once: the receiver gets its own copy of every agent, which it is free to
+ * change while the sender keeps the message for its antimessage.
+ *
+ * Only one thread may read. Any number may write, as for a socket.
+ */
+public class MemoryChannel {
+
+	private final ConcurrentLinkedQueue<byte[]> frames = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong bytesTaken = new AtomicLong();
+	// Only written while holding the output's lock.
+	private volatile long maxQueuedBytes = 0;
+	private volatile boolean closed = false;
+	private volatile Thread reader;
+
+	private final Output output = new Output();
+	private final Input input = new Input();
+
+	public FrameOutputStream getOutputStream() {
+		return output;
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	/**
+	 * Closes both ends. The reader still gets what was queued before.
+	 */
+	public void close() {
+		closed = true;
+		Thread t = reader;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private class Output extends FrameOutputStream {
+
+		@Override
+		protected void queue(byte[] frame) {
+			if (closed) {
+				return;
+			}
+			frames.offer(frame);
+			long queued = queuedBytes.addAndGet(frame.length);
+			if (queued > maxQueuedBytes) {
+				maxQueuedBytes = queued;
+			}
+			// The reader registers itself before it looks at the queue, so
+			// either it sees this frame or we see it and wake it.
+			Thread t = reader;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+
+		@Override
+		public long getQueuedBytes() {
+			return queuedBytes.get();
+		}
+
+		@Override
+		public long getMaxQueuedBytes() {
+			return maxQueuedBytes;
+		}
+
+		@Override
+		public long getBytesSent() {
+			return bytesTaken.get();
+		}
+
+		@Override
+		public void close() {
+			MemoryChannel.this.close();
+		}
+	}
+
+	private class Input extends InputStream {
+
+		private byte[] frame;
+		private int pos;
+
+		/*
+		 * Makes sure there is something left in the current frame, waiting
+		 * for the next one if need be. Returns false once the channel is
+		 * closed and drained.
+		 */
+		private boolean fill() {
+			if (frame != null && pos < frame.length) {
+				return true;
+			}
+			if (reader == null) {
+				reader = Thread.currentThread();
+			}
+			while (true) {
+				byte[] next = frames.poll();
+				if (next != null) {
+					queuedBytes.addAndGet(-next.length);
+					bytesTaken.addAndGet(next.length);
+					frame = next;
+					pos = 0;
+					return true;
+				}
+				if (closed) {
+					frame = null;
+					return false;
+				}
+				LockSupport.park(this);
+			}
+		}
+
+		@Override
+		public int read() {
+			if (!fill()) {
+				return -1;
+			}
+			return frame[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, frame.length - pos);
+			System.arraycopy(frame, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			if (frame != null && pos < frame.length) {
+				return frame.length - pos;
+			}
+			byte[] next = frames.peek();
+			return next == null ? 0 : next.length;
+		}
+
+		@Override
+		public void close() {
+			MemoryChannel.this.close();
+		}
+	}
+}
@@ -1,16 +1,25 @@
 package net;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import world.Agent;
+import world.AgentInfo;
+import world.AgentPool;
+import world.Halo;
+import world.LocalCell;
 
 public class Message implements Cloneable {
 
@@ -26,6 +35,11 @@ public class Message implements Cloneable {
 		public int sendertly;
 		public int senderw;
 		public int senderh;
+		public int ordinal;
+		// The turn everyone starts from.
+		public int turn;
+		// Whether we both switch to the asker's shared memory link.
+		public boolean shm;
 
 		public void setTlx(int tlx) {
 			this.tlx = tlx;
@@ -76,16 +90,146 @@ public class Message implements Cloneable {
 		}
 	}
 
+	/**
+	 * Where the asker's shared memory link is, if it made one, and the token
+	 * that shows it is the right file. See ShmRing.
+	 */
+	public static class OfferHelpRequest {
+		public String shmPath = "";
+		public long token;
+		// Where the asker listens for the other helpers.
+		public int port;
+	}
+
+	/**
+	 * Sent by a helper to open a direct link to another one: who it is, and
+	 * a shared memory link as in OfferHelpRequest.
+	 */
+	public static class PeerHello {
+		public int tlx;
+		public int tly;
+		public String shmPath = "";
+		public long token;
+	}
+
 	public static class ReceivedAgent {
 		public int x;
 		public int y;
 		public Agent agent;
 	}
 
+	public static class EndTurn {
+		public int turn = -1;
+		// The sender has received all of our messages up to this sequence
+		// number.
+		public long ackSeq;
+		// Engine ID -> {sequence number, local time}
+		public HashMap<String, int[]> times = new HashMap<String, int[]>();
+	}
+
+	/**
+	 * The part of the world one engine owns.
+	 */
+	public static class Region {
+		public int tlx;
+		public int tly;
+		public int width;
+		public int height;
+		// Where its engine listens for other helpers, or an empty host for
+		// the first engine, which every helper is linked to already.
+		public String host = "";
+		public int port;
+		// The ID of its engine, if it has been given one.
+		public String id;
+
+		public Region(int tlx, int tly, int width, int height) {
+			this.tlx = tlx;
+			this.tly = tly;
+			this.width = width;
+			this.height = height;
+		}
+
+		/**
+		 * @return the ID of the engine that owns this region, which unless
+		 *         it was given one is made from its top left corner.
+		 */
+		public String getID() {
+			return id != null ? id : tlx + "," + tly;
+		}
+	}
+
+	/**
+	 * Who owns what, sent by the first engine to every other one whenever an
+	 * engine joins, and by engines whose regions have changed.
+	 */
+	public static class RegionMap {
+		// Set once every engine we expect has joined; until then the others
+		// wait.
+		public boolean start;
+		public ArrayList<Region> regions = new ArrayList<Region>();
+	}
+
+	/**
+	 * Part of one engine's region, handed to the engine next to it along
+	 * with the agents in it.
+	 */
+	public static class RegionTransfer {
+		// The turn it is handed over at the end of.
+		public int turn;
+		// What was handed over, and the receiver's region with it.
+		public Region given;
+		public Region region;
+		// The cells handed over, as in a saved state, in the pieces they
+		// were sent in.
+		public ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+	}
+
 	public static final byte OFFERHELP = 0x1;
 	public static final byte SENDAGENT = 0x2;
 	public static final byte ENDTURN = 0x3;
+	public static final byte HALO = 0x4;
+	public static final byte FINDCELL = 0x5;
+	public static final byte CELLINFO = 0x6;
+	public static final byte GETAGENTINFO = 0x7;
+	public static final byte AGENTINFO = 0x8;
+	public static final byte REVISE = 0x9;
+	public static final byte ACK = 0xA;
+	public static final byte REGIONMAP = 0xB;
+	public static final byte PEERHELLO = 0xC;
+	public static final byte POPULATION = 0xD;
+	public static final byte HOLD = 0xE;
+	public static final byte REGIONTRANSFER = 0xF;
+
+	// About how many bytes of cells go in each frame of a region transfer.
+	static final int TRANSFER_CHUNK = 1 << 16;
+
+	/**
+	 * A findCell or getAgentInfo request, or the reply to one. A reply
+	 * repeats the ID of its request, so any number of requests can be
+	 * outstanding at once.
+	 */
+	public static class Query {
+		public byte type;
+		public long requestId;
+		// The engine that asked; filled in by the receiver.
+		public String id;
+		public int turn;
+		public int x;
+		public int y;
+		// getAgentInfo only.
+		public long agentId;
+		public String field;
+		// The reply: the agents in the cell, or the value of the field,
+		// which is null if the agent or the field is not there.
+		public List<AgentInfo> agents;
+		public Integer value;
+		// Set on a request we answered before rolling back past its turn, so
+		// that we answer it again once we get back there.
+		public boolean revised;
+	}
 
+	// Messages sent in the same turn are taken in ID order, which keeps each
+	// sender's messages in the order they were sent.
 	public static Comparator<Message> sendTurnComparator = new Comparator<Message>() {
 
 		public int compare(Message o1, Message o2) {
@@ -93,6 +237,10 @@ public class Message implements Cloneable {
 				return 1;
 			else if (o1.sendTurn < o2.sendTurn)
 				return -1;
+			else if (o1.messageId > o2.messageId)
+				return 1;
+			else if (o1.messageId < o2.messageId)
+				return -1;
 			else
 				return 0;
 
@@ -118,7 +266,8 @@ public class Message implements Cloneable {
 
 	public void print() {
 		System.out.println("sendTurn: " + sendTurn + " messageType: "
-				+ messageType + " sign: " + sign + " data: " + data);
+				+ messageType + " sign: " + sign + " messageId: "
+				+ Long.toHexString(messageId) + " data: " + data);
 		try {
 			System.out.write(data);
 			System.out.println();
@@ -129,25 +278,37 @@ public class Message implements Cloneable {
 
 	}
 
+	// A message equals its antimessage (and its ack), which share its
+	// messageId and have the opposite sign.
 	@Override
 	public boolean equals(Object other) {
 		boolean result = false;
 		if (other instanceof Message) {
 			Message otherMsg = (Message) other;
-			result = ((this.sendTurn == otherMsg.sendTurn)
+			result = ((this.messageId == otherMsg.messageId)
 					&& (this.messageType == otherMsg.messageType)
-					&& (this.sign != otherMsg.sign) && Arrays.equals(this.data,
-					otherMsg.data));
+					&& (this.sign != otherMsg.sign));
 		}
 		return result;
 	}
 
+	@Override
+	public int hashCode() {
+		return (int) (messageId ^ (messageId >>> 32)) + messageType;
+	}
+
 	public int sendTurn;
 	public boolean sign;
 	private int recvTurn;
 	public byte messageType;
 	private byte[] data;
 	public String id;
+	// Unique across the whole world; see LocalEngine.newMessageId(). A
+	// message sent again after a rollback gets a new one.
+	public long messageId;
+	// Counts the messages sent to one peer, so that it can ack all of them
+	// up to some point at once. Set by RemoteEngine.send().
+	public long seq;
 
 	public Message(int sendTurn, boolean sign, String id) {
 		this.sendTurn = sendTurn;
@@ -167,6 +328,8 @@ public class Message implements Cloneable {
 			dos.writeByte(messageType);
 			dos.writeInt(sendTurn);
 			dos.writeBoolean(sign);
+			dos.writeLong(messageId);
+			dos.writeLong(seq);
 			dos.writeInt(dataSize);
 			dos.flush();
 		} catch (Exception e) {
@@ -180,9 +343,9 @@ public class Message implements Cloneable {
 			DataInputStream dis = new DataInputStream(is);
 			sendTurn = dis.readInt();
 			sign = dis.readBoolean();
+			messageId = dis.readLong();
+			seq = dis.readLong();
 			dataSize = dis.readInt();
-			System.out.println("Read Message: sendTurn =" + sendTurn + " sign " + sign
-					+ " dataSize " + dataSize);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return -1;
@@ -190,10 +353,16 @@ public class Message implements Cloneable {
 		return dataSize;
 	}
 
-	public static void sendOfferHelpReq(OutputStream out) {
+	public static void sendOfferHelpReq(OutputStream out, String shmPath,
+			long token, int port) {
 		try {
 			synchronized (out) {
-				out.write(OFFERHELP);
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(OFFERHELP);
+				dos.writeUTF(shmPath);
+				dos.writeLong(token);
+				dos.writeInt(port);
+				dos.flush();
 				out.flush();
 			}
 		} catch (Exception e) {
@@ -202,9 +371,78 @@ public class Message implements Cloneable {
 
 	}
 
+	/**
+	 * Reads the rest of an OFFERHELP request, after its type.
+	 */
+	public static OfferHelpRequest recvOfferHelpReq(InputStream in)
+			throws IOException {
+		OfferHelpRequest r = new OfferHelpRequest();
+		DataInputStream dis = new DataInputStream(in);
+		r.shmPath = dis.readUTF();
+		r.token = dis.readLong();
+		r.port = dis.readInt();
+		return r;
+	}
+
+	public static void sendPeerHello(OutputStream out, PeerHello hello) {
+		try {
+			synchronized (out) {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(PEERHELLO);
+				dos.writeInt(hello.tlx);
+				dos.writeInt(hello.tly);
+				dos.writeUTF(hello.shmPath);
+				dos.writeLong(hello.token);
+				dos.flush();
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the rest of a PEERHELLO, after its type.
+	 */
+	public static PeerHello recvPeerHello(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		PeerHello hello = new PeerHello();
+		hello.tlx = dis.readInt();
+		hello.tly = dis.readInt();
+		hello.shmPath = dis.readUTF();
+		hello.token = dis.readLong();
+		return hello;
+	}
+
+	/**
+	 * Answers a PEERHELLO: whether we both switch to its shared memory link.
+	 */
+	public static void sendPeerHelloResp(OutputStream out, boolean shm) {
+		try {
+			synchronized (out) {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(PEERHELLO);
+				dos.writeBoolean(shm);
+				dos.flush();
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static boolean recvPeerHelloResp(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		if (dis.read() != PEERHELLO) {
+			throw new IOException("Expected a PEERHELLO response");
+		}
+		return dis.readBoolean();
+	}
+
 	public static void sendOfferHelpResp(OutputStream out, int tlx, int tly,
 			int width, int height, int globalWidth, int globalHeight,
-			int sendertlx, int sendertly, int senderw, int senderh) {
+			int sendertlx, int sendertly, int senderw, int senderh,
+			int ordinal, int turn, boolean shm) {
 		try {
 			synchronized (out) {
 				DataOutputStream dos = new DataOutputStream(out);
@@ -219,6 +457,11 @@ public class Message implements Cloneable {
 				dos.writeInt(sendertly);
 				dos.writeInt(senderw);
 				dos.writeInt(senderh);
+				dos.writeInt(ordinal);
+				dos.writeInt(turn);
+				dos.writeBoolean(shm);
+				dos.flush();
+				out.flush();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -241,6 +484,9 @@ public class Message implements Cloneable {
 			r.sendertly = dis.readInt();
 			r.senderw = dis.readInt();
 			r.senderh = dis.readInt();
+			r.ordinal = dis.readInt();
+			r.turn = dis.readInt();
+			r.shm = dis.readBoolean();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -251,8 +497,6 @@ public class Message implements Cloneable {
 		synchronized (out) {
 			DataOutputStream dos = new DataOutputStream(out);
 			writeMessage(dos, (byte) this.messageType, data.length);
-			System.out.println("Sending: ");
-			this.print();
 			try {
 				dos.write(data, 0, data.length);
 				dos.flush();
@@ -263,10 +507,212 @@ public class Message implements Cloneable {
 		}
 	}
 
-	public void ackMessage(OutputStream out) {
-		this.messageType = (byte) ~this.messageType;
-		this.sendMessage(out);
-		this.messageType = (byte) ~this.messageType;
+	/**
+	 * Tells a peer we have received all of its messages up to and including
+	 * this sequence number.
+	 */
+	public static void sendAck(OutputStream out, long seq) {
+		try {
+			synchronized (out) {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(ACK);
+				dos.writeLong(seq);
+				dos.flush();
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static long recvAck(InputStream in) throws IOException {
+		return new DataInputStream(in).readLong();
+	}
+
+	/*
+	 * regionMap: requestType (1 byte) Start (1 byte) Number (4 bytes) then
+	 * for each region: Tlx Tly Width Height (4 bytes each) EngineID (UTF)
+	 * Host (UTF) Port (4 bytes)
+	 */
+	public static void sendRegionMap(OutputStream out, RegionMap map) {
+		try {
+			synchronized (out) {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(REGIONMAP);
+				dos.writeBoolean(map.start);
+				dos.writeInt(map.regions.size());
+				for (Region r : map.regions) {
+					dos.writeInt(r.tlx);
+					dos.writeInt(r.tly);
+					dos.writeInt(r.width);
+					dos.writeInt(r.height);
+					dos.writeUTF(r.getID());
+					dos.writeUTF(r.host);
+					dos.writeInt(r.port);
+				}
+				dos.flush();
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static RegionMap recvRegionMap(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		RegionMap map = new RegionMap();
+		map.start = dis.readBoolean();
+		int n = dis.readInt();
+		for (int i = 0; i < n; i++) {
+			Region r = new Region(dis.readInt(), dis.readInt(), dis.readInt(),
+					dis.readInt());
+			r.id = dis.readUTF();
+			r.host = dis.readUTF();
+			r.port = dis.readInt();
+			map.regions.add(r);
+		}
+		return map;
+	}
+
+	/*
+	 * hold: requestType (1 byte) Turn (4 bytes)
+	 */
+	public static void sendHold(OutputStream out, int turn) {
+		try {
+			synchronized (out) {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(HOLD);
+				dos.writeInt(turn);
+				dos.flush();
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static int recvHold(InputStream in) throws IOException {
+		return new DataInputStream(in).readInt();
+	}
+
+	/*
+	 * regionTransfer: requestType (1 byte) Turn (4 bytes) then the region
+	 * given and the receiver's region with it, each Tlx Tly Width Height (4
+	 * bytes each), then the cells given as in a saved state, in chunks of
+	 * Length (4 bytes) Cells (Length bytes), ending with a Length of 0.
+	 */
+	public static void sendRegionTransfer(OutputStream out, int turn,
+			Region given, Region region, List<LocalCell> cells) {
+		try {
+			synchronized (out) {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(REGIONTRANSFER);
+				dos.writeInt(turn);
+				for (Region r : new Region[] { given, region }) {
+					dos.writeInt(r.tlx);
+					dos.writeInt(r.tly);
+					dos.writeInt(r.width);
+					dos.writeInt(r.height);
+				}
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+				for (LocalCell cell : cells) {
+					byte[] bytes = cell.serialize();
+					if (chunk.size() > 0
+							&& chunk.size() + bytes.length > TRANSFER_CHUNK) {
+						dos.writeInt(chunk.size());
+						chunk.writeTo(dos);
+						chunk.reset();
+						// Each chunk is its own frame.
+						dos.flush();
+						out.flush();
+					}
+					chunk.write(bytes);
+				}
+				if (chunk.size() > 0) {
+					dos.writeInt(chunk.size());
+					chunk.writeTo(dos);
+				}
+				dos.writeInt(0);
+				dos.flush();
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static RegionTransfer recvRegionTransfer(InputStream in)
+			throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		RegionTransfer t = new RegionTransfer();
+		t.turn = dis.readInt();
+		t.given = new Region(dis.readInt(), dis.readInt(), dis.readInt(), dis
+				.readInt());
+		t.region = new Region(dis.readInt(), dis.readInt(), dis.readInt(),
+				dis.readInt());
+		int length;
+		while ((length = dis.readInt()) > 0) {
+			byte[] chunk = new byte[length];
+			dis.readFully(chunk);
+			t.chunks.add(chunk);
+		}
+		return t;
+	}
+
+	/*
+	 * population: requestType (1 byte) Number (4 bytes) then each cell as in
+	 * a saved state: X Y (4 bytes each) Agents (4 bytes) Agent(serialized)...
+	 */
+	public static void sendPopulation(OutputStream out, List<LocalCell> cells) {
+		try {
+			synchronized (out) {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(POPULATION);
+				dos.writeInt(cells.size());
+				int pending = 0;
+				for (LocalCell cell : cells) {
+					byte[] bytes = cell.serialize();
+					dos.write(bytes);
+					pending += bytes.length;
+					// Hand it on in pieces rather than as one huge frame.
+					if (pending >= 1 << 16) {
+						dos.flush();
+						out.flush();
+						pending = 0;
+					}
+				}
+				dos.flush();
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads a population, type and all.
+	 */
+	public static ArrayList<ReceivedAgent> recvPopulation(InputStream in,
+			AgentPool pool) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		if (dis.read() != POPULATION) {
+			throw new IOException("Expected a POPULATION message");
+		}
+		ArrayList<ReceivedAgent> agents = new ArrayList<ReceivedAgent>();
+		int cells = dis.readInt();
+		for (int i = 0; i < cells; i++) {
+			int x = dis.readInt();
+			int y = dis.readInt();
+			int count = dis.readInt();
+			while (count-- != 0) {
+				ReceivedAgent r = new ReceivedAgent();
+				r.x = x;
+				r.y = y;
+				r.agent = Agent.read(dis, pool);
+				agents.add(r);
+			}
+		}
+		return agents;
 	}
 
 	/*
@@ -286,45 +732,145 @@ public class Message implements Cloneable {
 	}
 
 	public ReceivedAgent recvAgent() {
+		return recvAgent((AgentPool) null);
+	}
+
+	public ReceivedAgent recvAgent(AgentPool pool) {
 		ReceivedAgent result = null;
 		try {
 			result = new ReceivedAgent();
 			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 			result.x = dis.readInt();
 			result.y = dis.readInt();
-			result.agent = Agent.read(dis);
+			result.agent = Agent.read(dis, pool);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		return result;
 	}
 
+	public void sendHalo(Halo halo) {
+		this.messageType = HALO;
+		this.data = halo.toBytes();
+	}
+
+	public Halo recvHalo() {
+		try {
+			return Halo.read(new DataInputStream(new ByteArrayInputStream(data)));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/*
+	 * A new answer to a request answered before a rollback: the reply's
+	 * type, then Turn X Y and the agents as in cellInfo, or Turn AgentID
+	 * Field Length Value for agentInfo.
+	 */
+	public void sendRevision(Query reply) {
+		this.messageType = REVISE;
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(byteStream);
+			out.writeByte(reply.type);
+			out.writeInt(reply.turn);
+			out.writeInt(reply.x);
+			out.writeInt(reply.y);
+			if (reply.type == CELLINFO) {
+				out.writeInt(reply.agents.size());
+				for (AgentInfo a : reply.agents) {
+					out.writeLong(a.id);
+					out.writeUTF(a.type);
+				}
+			} else {
+				out.writeLong(reply.agentId);
+				out.writeUTF(reply.field);
+				if (reply.value == null) {
+					out.writeInt(0);
+				} else {
+					out.writeInt(4);
+					out.writeInt(reply.value);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.data = byteStream.toByteArray();
+	}
+
+	public Query recvRevision() {
+		Query q = new Query();
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			q.type = in.readByte();
+			q.turn = in.readInt();
+			q.x = in.readInt();
+			q.y = in.readInt();
+			if (q.type == CELLINFO) {
+				int number = in.readInt();
+				q.agents = new ArrayList<AgentInfo>(number);
+				for (int i = 0; i < number; i++) {
+					long id = in.readLong();
+					q.agents.add(new AgentInfo(id, in.readUTF(), q.x, q.y));
+				}
+			} else {
+				q.agentId = in.readLong();
+				q.field = in.readUTF();
+				if (in.readInt() == 4) {
+					q.value = in.readInt();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return q;
+	}
+
 	public void recvAgent(InputStream in) {
+		recvMessage(in);
+	}
+
+	/**
+	 * Reads the rest of any message with a sendTurn, sign, ID and data, once
+	 * the type has been read.
+	 */
+	public void recvMessage(InputStream in) {
 
 		try {
 			int dataSize = readMessage(in);
-			System.out.println("size:" + dataSize);
 			data = new byte[dataSize];
 			int bytesRead = 0;
 			do {
-				bytesRead += in.read(data, bytesRead, dataSize - bytesRead);
-				System.out.println("Read " + bytesRead + " of " + dataSize);
+				int n = in.read(data, bytesRead, dataSize - bytesRead);
+				if (n == -1) {
+					throw new EOFException("Connection closed mid-message");
+				}
+				bytesRead += n;
 			} while (bytesRead < dataSize);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		System.out.println("Received agent: ");
-		this.print();
 	}
 
-	public static void sendEndTurn(OutputStream out, int turn) {
+	/*
+	 * endTurn: requestType (1 byte) Turn (4 bytes) AckSeq (8 bytes) Entries (4
+	 * bytes) then for each entry: EngineID (UTF) Seq (4 bytes) Time (4 bytes)
+	 */
+	public static void sendEndTurn(OutputStream out, int turn, long ackSeq,
+			Map<String, int[]> times) {
 		try {
 			synchronized (out) {
 				DataOutputStream dos = new DataOutputStream(out);
 				dos.write(ENDTURN);
 				dos.writeInt(turn);
-				System.out.println("Sending ENDTURN " + turn);
+				dos.writeLong(ackSeq);
+				dos.writeInt(times.size());
+				for (Map.Entry<String, int[]> e : times.entrySet()) {
+					dos.writeUTF(e.getKey());
+					dos.writeInt(e.getValue()[0]);
+					dos.writeInt(e.getValue()[1]);
+				}
 				dos.flush();
 				out.flush();
 			}
@@ -333,16 +879,107 @@ public class Message implements Cloneable {
 		}
 	}
 
-	public static int recvEndTurn(InputStream in) {
-		int turn = -1;
+	public static EndTurn recvEndTurn(InputStream in) {
+		EndTurn result = new EndTurn();
 		try {
 			DataInputStream dis = new DataInputStream(in);
 			// TODO: Check message type.
-			turn = dis.readInt();
+			result.turn = dis.readInt();
+			result.ackSeq = dis.readLong();
+			int entries = dis.readInt();
+			for (int i = 0; i < entries; i++) {
+				String id = dis.readUTF();
+				int seq = dis.readInt();
+				int time = dis.readInt();
+				result.times.put(id, new int[] { seq, time });
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	/*
+	 * findCell: requestType (1 byte) RequestID (8 bytes) Turn (4 bytes) X (4
+	 * bytes) Y (4 bytes); cellInfo: the same, then Number (4 bytes) and for
+	 * each agent AgentID (8 bytes) Class (UTF). getAgentInfo: as findCell,
+	 * then AgentID (8 bytes) Field (UTF); agentInfo: requestType RequestID
+	 * Length (4 bytes) Value (Length bytes).
+	 */
+	public static void sendQuery(OutputStream out, Query q) {
+		try {
+			synchronized (out) {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.write(q.type);
+				dos.writeLong(q.requestId);
+				if (q.type != AGENTINFO) {
+					dos.writeInt(q.turn);
+					dos.writeInt(q.x);
+					dos.writeInt(q.y);
+				}
+				switch (q.type) {
+				case CELLINFO:
+					dos.writeInt(q.agents.size());
+					for (AgentInfo a : q.agents) {
+						dos.writeLong(a.id);
+						dos.writeUTF(a.type);
+					}
+					break;
+				case GETAGENTINFO:
+					dos.writeLong(q.agentId);
+					dos.writeUTF(q.field);
+					break;
+				case AGENTINFO:
+					if (q.value == null) {
+						dos.writeInt(0);
+					} else {
+						dos.writeInt(4);
+						dos.writeInt(q.value);
+					}
+					break;
+				}
+				dos.flush();
+				out.flush();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static Query recvQuery(InputStream in, byte type) {
+		Query q = new Query();
+		q.type = type;
+		try {
+			DataInputStream dis = new DataInputStream(in);
+			q.requestId = dis.readLong();
+			if (type != AGENTINFO) {
+				q.turn = dis.readInt();
+				q.x = dis.readInt();
+				q.y = dis.readInt();
+			}
+			switch (type) {
+			case CELLINFO:
+				int number = dis.readInt();
+				q.agents = new ArrayList<AgentInfo>(number);
+				for (int i = 0; i < number; i++) {
+					long id = dis.readLong();
+					q.agents.add(new AgentInfo(id, dis.readUTF(), q.x, q.y));
+				}
+				break;
+			case GETAGENTINFO:
+				q.agentId = dis.readLong();
+				q.field = dis.readUTF();
+				break;
+			case AGENTINFO:
+				if (dis.readInt() == 4) {
+					q.value = dis.readInt();
+				}
+				break;
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		return turn;
+		return q;
 	}
 
 	public Object clone() {
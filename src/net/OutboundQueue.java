@@ -0,0 +1,126 @@
+package net;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * The sending side of a connection to a peer. Each frame is queued, and a
+ * writer thread of our own sends the queued frames through a large buffer
+ * and only flushes the socket once it has caught up, so a burst of small
+ * messages goes out in a few big writes and the thread that queued them
+ * never waits on the network.
+ *
+ * The queue has no hard limit: blocking a peer's reader thread on it could
+ * deadlock two engines that are both sending. Instead the engine checks
+ * getQueuedBytes() and stops running ahead while a peer is behind.
+ */
+public class OutboundQueue extends FrameOutputStream implements Runnable {
+
+	private final OutputStream sink;
+	// Guarded by frames.
+	private final LinkedList<byte[]> frames = new LinkedList<byte[]>();
+	private long queuedBytes = 0;
+	private long maxQueuedBytes = 0;
+	private long bytesSent = 0;
+	private boolean closed = false;
+
+	public OutboundQueue(OutputStream out, String name) {
+		this.sink = new BufferedOutputStream(out, 1 << 16);
+		Thread writer = new Thread(this, name);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	protected void queue(byte[] frame) {
+		synchronized (frames) {
+			if (closed) {
+				return;
+			}
+			frames.add(frame);
+			queuedBytes += frame.length;
+			maxQueuedBytes = Math.max(maxQueuedBytes, queuedBytes);
+			frames.notifyAll();
+		}
+	}
+
+	public void run() {
+		ArrayList<byte[]> batch = new ArrayList<byte[]>();
+		try {
+			while (true) {
+				synchronized (frames) {
+					while (frames.isEmpty() && !closed) {
+						frames.wait();
+					}
+					if (closed) {
+						return;
+					}
+					batch.addAll(frames);
+					frames.clear();
+				}
+				long sent = 0;
+				for (byte[] frame : batch) {
+					sink.write(frame);
+					sent += frame.length;
+				}
+				batch.clear();
+				boolean caughtUp;
+				synchronized (frames) {
+					queuedBytes -= sent;
+					bytesSent += sent;
+					caughtUp = frames.isEmpty();
+				}
+				if (caughtUp) {
+					sink.flush();
+				}
+			}
+		} catch (IOException e) {
+			// The socket was closed under us.
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		synchronized (frames) {
+			closed = true;
+			frames.clear();
+			queuedBytes = 0;
+		}
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		synchronized (frames) {
+			return queuedBytes;
+		}
+	}
+
+	@Override
+	public long getMaxQueuedBytes() {
+		synchronized (frames) {
+			return maxQueuedBytes;
+		}
+	}
+
+	/**
+	 * @return the bytes the writer has passed to the socket so far.
+	 */
+	@Override
+	public long getBytesSent() {
+		synchronized (frames) {
+			return bytesSent;
+		}
+	}
+
+	/**
+	 * Stops the writer thread. Anything still queued is dropped.
+	 */
+	@Override
+	public void close() {
+		synchronized (frames) {
+			closed = true;
+			frames.notifyAll();
+		}
+	}
+}
@@ -1,24 +1,27 @@
 package net;
 
 import java.text.MessageFormat;
-
-import com.apple.dnssd.TXTRecord;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Peer {
 	private final String name;
 	private final String address;
 	private final int port;
-	private final TXTRecord txtRecord;
+	private final Map<String, String> attributes;
 
-	public Peer(final String name, final String address, final int port, final TXTRecord txtRecord) {
+	public Peer(final String name, final String address, final int port,
+			final Map<String, String> attributes) {
 		this.name = name;
 		this.address = address;
 		this.port = port;
-		this.txtRecord = txtRecord;
+		this.attributes = Collections.unmodifiableMap(new HashMap<String, String>(
+				attributes));
 	}
 
 	public Peer(final String name) {
-		this(name, "", -1, new TXTRecord());
+		this(name, "", -1, new HashMap<String, String>());
 	}
 
 	public String getName() {
@@ -33,17 +36,23 @@ public class Peer {
 		return port;
 	}
 
-	public TXTRecord getTxtRecord() {
-		return txtRecord;
+	/**
+	 * @return what the peer registered with, such as its region and load.
+	 */
+	public Map<String, String> getAttributes() {
+		return attributes;
+	}
+
+	public String getAttribute(String key) {
+		return attributes.get(key);
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(MessageFormat.format("Name: {0}, Address: {1}, Port: {2}", name, address, port));
-		for (int i = 0; i < txtRecord.size(); ++i) {
-			sb.append(MessageFormat.format("<{0}, {1}>", txtRecord.getKey(i), txtRecord
-					.getValueAsString(i)));
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			sb.append(MessageFormat.format("<{0}, {1}>", e.getKey(), e.getValue()));
 		}
 		return sb.toString();
 	}
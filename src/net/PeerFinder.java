@@ -4,8 +4,23 @@ import java.util.Map;
 
 import javax.swing.event.EventListenerList;
 
+/**
+ * Finds other engines and advertises this one. Engines register a few
+ * attributes, under the keys below, that others can see before connecting.
+ */
 public abstract class PeerFinder {
 
+	// Whether an engine is the one helpers join, or a helper.
+	public static final String ROLE = "role";
+	public static final String COORDINATOR = "coordinator";
+	public static final String HELPER = "helper";
+	// The region an engine owns, as "tlx,tly,width,height".
+	public static final String REGION = "region";
+	// How many agents it has.
+	public static final String LOAD = "load";
+	// The port it accepts connections on.
+	public static final String PORT = "port";
+
 	protected EventListenerList listeners = new EventListenerList();
 
 	public void addPeerListener(PeerListener p) {
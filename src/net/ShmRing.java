@@ -0,0 +1,269 @@
+package net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A one-way connection between two engine processes on the same machine: a
+ * single-producer, single-consumer ring buffer in a file both of them map,
+ * normally under /dev/shm so that it never touches a disk. The writer and
+ * reader each only ever move their own position, so neither takes a lock.
+ *
+ * A link is one file holding a token and two rings, one each way. The
+ * engine that asks for help creates it and sends its path and token in its
+ * OFFERHELP request; if the other engine can map it and finds the same
+ * token there, the two are on the same machine and both switch to the
+ * rings. Otherwise they stay on TCP.
+ *
+ * Neither side can wake the other, so a reader with nothing to read, or a
+ * writer with no room, spins briefly and then polls.
+ */
+public class ShmRing {
+
+	public static final File DIR = new File("/dev/shm");
+	static final int CAPACITY = 1 << 20;
+	static final int MASK = CAPACITY - 1;
+
+	// The file starts with the token, then holds the rings, each a header
+	// followed by its data.
+	static final int FILE_HEADER = 64;
+	// Each in its own cache line, as they are written by different sides.
+	static final int HEAD = 0;
+	static final int CLOSED = 8;
+	static final int TAIL = 64;
+	static final int RING_HEADER = 128;
+	static final int RING_SIZE = RING_HEADER + CAPACITY;
+
+	private static volatile int barrier;
+
+	private final ByteBuffer header;
+	private final ByteBuffer data;
+	private final Output output;
+	private final Input input;
+
+	private ShmRing(MappedByteBuffer file, int offset) {
+		ByteBuffer b = file.duplicate();
+		b.position(offset);
+		b.limit(offset + RING_HEADER);
+		header = b.slice();
+		b.limit(offset + RING_SIZE);
+		b.position(offset + RING_HEADER);
+		data = b.slice();
+		output = new Output();
+		input = new Input();
+	}
+
+	/**
+	 * Makes a new link file with a random token in it.
+	 *
+	 * @return the file, or null if there is nowhere to put it.
+	 */
+	public static File create(long token) {
+		if (!DIR.isDirectory()) {
+			return null;
+		}
+		try {
+			File file = File.createTempFile("cellsim-", ".ring", DIR);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(FILE_HEADER + 2 * RING_SIZE);
+				raf.writeLong(token);
+			} finally {
+				raf.close();
+			}
+			file.deleteOnExit();
+			return file;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public static long newToken() {
+		return new Random().nextLong();
+	}
+
+	/**
+	 * Maps a link file. The engine that created it sends on the first ring
+	 * and the other engine on the second.
+	 *
+	 * @return the ring we send on and the ring we receive on, or null if the
+	 *         file is not there or does not hold the token.
+	 */
+	public static ShmRing[] map(String path, long token, boolean creator) {
+		File file = new File(path);
+		if (path.length() == 0 || !file.isFile()
+				|| file.length() != FILE_HEADER + 2 * RING_SIZE) {
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			MappedByteBuffer buffer;
+			try {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, file.length());
+			} finally {
+				// The mapping outlives the file and the channel.
+				raf.close();
+			}
+			if (buffer.getLong(0) != token) {
+				return null;
+			}
+			ShmRing first = new ShmRing(buffer, FILE_HEADER);
+			ShmRing second = new ShmRing(buffer, FILE_HEADER + RING_SIZE);
+			return creator ? new ShmRing[] { first, second } : new ShmRing[] {
+					second, first };
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	/**
+	 * Closes both ends. The reader still gets what was written before.
+	 */
+	public void close() {
+		fence();
+		header.putInt(CLOSED, 1);
+	}
+
+	public boolean isClosed() {
+		return header.getInt(CLOSED) != 0;
+	}
+
+	/*
+	 * A volatile write followed by a volatile read: no load or store of the
+	 * ring on either side can be moved across it. This is what orders the
+	 * data against the positions that publish it.
+	 */
+	private static int fence() {
+		barrier = 0;
+		return barrier;
+	}
+
+	private static void idle(int spins) {
+		if (spins < 1000) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+	// Only the writer's thread may use this.
+	private class Output extends OutputStream {
+
+		private final ByteBuffer buffer = data.duplicate();
+		private final byte[] one = new byte[1];
+		private long head = header.getLong(HEAD);
+
+		@Override
+		public void write(int b) throws IOException {
+			one[0] = (byte) b;
+			write(one, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int spins = 0;
+			while (len > 0) {
+				if (isClosed()) {
+					throw new IOException("ring closed");
+				}
+				long tail = header.getLong(TAIL);
+				fence();
+				int room = CAPACITY - (int) (head - tail);
+				if (room == 0) {
+					idle(spins++);
+					continue;
+				}
+				spins = 0;
+				int at = (int) head & MASK;
+				int n = Math.min(len, Math.min(room, CAPACITY - at));
+				buffer.position(at);
+				buffer.put(b, off, n);
+				fence();
+				head += n;
+				header.putLong(HEAD, head);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() {
+			ShmRing.this.close();
+		}
+	}
+
+	// Only the reader's thread may use this.
+	private class Input extends InputStream {
+
+		private final ByteBuffer buffer = data.duplicate();
+		private final byte[] one = new byte[1];
+		private long tail = header.getLong(TAIL);
+
+		private int waiting() {
+			long head = header.getLong(HEAD);
+			fence();
+			return (int) (head - tail);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int spins = 0;
+			int waiting;
+			while ((waiting = waiting()) == 0) {
+				if (isClosed()) {
+					// Something may have come in just before it closed.
+					if (waiting() == 0) {
+						return -1;
+					}
+					continue;
+				}
+				idle(spins++);
+			}
+			int at = (int) tail & MASK;
+			int n = Math.min(len, Math.min(waiting, CAPACITY - at));
+			buffer.position(at);
+			buffer.get(b, off, n);
+			fence();
+			tail += n;
+			header.putLong(TAIL, tail);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return waiting();
+		}
+
+		@Override
+		public void close() {
+			ShmRing.this.close();
+		}
+	}
+}
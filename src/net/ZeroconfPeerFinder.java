@@ -27,17 +27,33 @@ public class ZeroconfPeerFinder extends PeerFinder implements RegisterListener,
 	public static final String SERVICE_TYPE = "_cabs._tcp";
 	public static final int SERVICE_PORT = 1234;
 
+	/**
+	 * Makes a finder. Code that only holds a PeerFinder made this way can be
+	 * loaded without the DNS-SD library, as long as it never calls this.
+	 */
+	public static PeerFinder create() {
+		return new ZeroconfPeerFinder();
+	}
+
+	/**
+	 * Advertises the attributes as a TXT record, on the port given by the
+	 * PORT attribute if there is one.
+	 */
 	@Override
 	public void register(Map<String, String> attributes) {
 		try {
 			TXTRecord txt = new TXTRecord();
+			int port = SERVICE_PORT;
 			if (attributes != null && attributes.size() != 0) {
 				for (Map.Entry<String, String> entry : attributes.entrySet()) {
 					txt.set(entry.getKey(), entry.getValue());
 				}
+				if (attributes.containsKey(PORT)) {
+					port = Integer.parseInt(attributes.get(PORT));
+				}
 			}
 			localRegistration = DNSSD.register(0, DNSSD.ALL_INTERFACES, null, SERVICE_TYPE, null,
-					null, SERVICE_PORT, txt, this);
+					null, port, txt, this);
 
 		} catch (DNSSDException e) {
 			e.printStackTrace();
@@ -113,7 +129,11 @@ public class ZeroconfPeerFinder extends PeerFinder implements RegisterListener,
 			java.lang.String fullName, java.lang.String hostName, int port, TXTRecord txtRecord) {
 		log.debug(MessageFormat.format("Resolved a service: {0}; {1}; {2}", fullName, hostName,
 				port));
-		firePeerFound(new Peer(fullName, hostName, port, txtRecord));
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		for (int i = 0; i < txtRecord.size(); ++i) {
+			attributes.put(txtRecord.getKey(i), txtRecord.getValueAsString(i));
+		}
+		firePeerFound(new Peer(fullName, hostName, port, attributes));
 	}
 
 	public static void main(String[] args) throws InterruptedException {
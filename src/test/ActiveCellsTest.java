@@ -0,0 +1,98 @@
+package test;
+
+import java.util.HashMap;
+
+import engine.LocalEngine;
+import world.Agent;
+import world.LocalCell;
+import world.impl.Rabbit;
+
+/**
+ * Runs one engine of Rabbits, which step one cell east each turn, and
+ * checks that only the cells occupied at the start of a turn are stepped:
+ * a Rabbit moving into a cell that is yet to be stepped, or into one that
+ * already was, still moves once, and a cell drops out of the engine's
+ * occupied cells once it is empty.
+ */
+public class ActiveCellsTest {
+
+	static final int WIDTH = 20;
+	static final int HEIGHT = 10;
+	static final int TURNS = 25;
+
+	public static void main(String[] args) throws Exception {
+		run(false);
+		run(true);
+		Check.done("ActiveCellsTest");
+	}
+
+	static void run(boolean conservative) throws Exception {
+		String mode = conservative ? "conservative: " : "optimistic: ";
+		final LocalEngine engine = new LocalEngine(0, 0, WIDTH, HEIGHT,
+				WIDTH, HEIGHT, false);
+		engine.setShowGrid(false);
+		engine.setVerbose(false);
+		engine.setConservative(conservative);
+		engine.setStopTurn(TURNS);
+
+		HashMap<Long, Integer> startX = new HashMap<Long, Integer>();
+		HashMap<Long, Integer> startY = new HashMap<Long, Integer>();
+		// A row of Rabbits, each moving into the cell of the one ahead of
+		// it, the last wrapping round into the first cell, which was
+		// stepped before it.
+		for (int x = 0; x < WIDTH; x++) {
+			place(engine, x, 2, startX, startY);
+		}
+		// Two in one cell, and a lone one that leaves its cell empty.
+		place(engine, 4, 6, startX, startY);
+		place(engine, 4, 6, startX, startY);
+		place(engine, 11, 8, startX, startY);
+		LocalCell lonely = engine.getCell(11, 8);
+		Check.that(lonely.getActiveIndex() >= 0, mode
+				+ "an occupied cell is active");
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				engine.go();
+			}
+		});
+		t.start();
+		while (engine.turn < TURNS) {
+			Thread.sleep(1);
+		}
+		engine.shutdown();
+		t.join();
+
+		Check.equal(startX.size(), engine.countAgents(), mode + "agents");
+		int occupied = 0;
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				LocalCell cell = engine.getCell(x, y);
+				boolean empty = cell.getAgents().isEmpty();
+				Check.that(empty == (cell.getActiveIndex() < 0), mode + x
+						+ ", " + y + " is active only while occupied");
+				if (!empty) {
+					occupied++;
+				}
+				for (Agent a : cell.getAgents()) {
+					Check.equal((startX.get(a.getId()) + TURNS) % WIDTH, x,
+							mode + "column of " + a.getId());
+					Check.equal(startY.get(a.getId()), y, mode + "row of "
+							+ a.getId());
+				}
+			}
+		}
+		Check.equal(WIDTH + 2, occupied, mode + "occupied cells");
+		Check.that(lonely.getAgents().isEmpty()
+				&& lonely.getActiveIndex() < 0, mode
+				+ "the lone Rabbit's first cell dropped out");
+	}
+
+	static void place(LocalEngine engine, int x, int y,
+			HashMap<Long, Integer> startX, HashMap<Long, Integer> startY) {
+		Agent a = new Rabbit();
+		engine.placeAgent(x, y, a);
+		startX.put(a.getId(), x);
+		startY.put(a.getId(), y);
+	}
+}
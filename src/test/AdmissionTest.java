@@ -0,0 +1,207 @@
+package test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.LocalPeerFinder;
+import net.Message;
+import net.PeerFinder;
+import engine.Admission;
+import engine.LocalEngine;
+import engine.RemoteEngine;
+import world.impl.Rabbit;
+
+/**
+ * Starts a run of four engines in one process the way one across machines
+ * starts: the first holds every agent and advertises itself, and the rest
+ * find it through LocalPeerFinders and join it as helpers. Checks that the
+ * regions they end up with cover the world once, that every engine is
+ * linked to every other and agrees with the others on who owns what, and
+ * that no agent is lost in handing the regions out or in running them.
+ */
+public class AdmissionTest {
+
+	static final int SIZE = 40;
+	static final int HELPERS = 3;
+	static final int AGENTS = 200;
+	static final int TURNS = 30;
+
+	public static void main(String[] args) throws Exception {
+		final LocalEngine first = new LocalEngine(0, 0, SIZE, SIZE, SIZE,
+				SIZE, false);
+		first.setVerbose(false);
+		Random random = new Random(3);
+		for (int i = 0; i < AGENTS; i++) {
+			first.placeAgent(random.nextInt(SIZE), random.nextInt(SIZE),
+					new Rabbit());
+		}
+		int placed = first.countAgents();
+
+		final ServerSocket serverSocket = new ServerSocket(0, HELPERS,
+				InetAddress.getByName("127.0.0.1"));
+		final List<LocalEngine> engines = Collections
+				.synchronizedList(new ArrayList<LocalEngine>());
+		final List<PeerFinder> finders = Collections
+				.synchronizedList(new ArrayList<PeerFinder>());
+		ArrayList<Thread> joins = new ArrayList<Thread>();
+		joins.add(new Thread(new Runnable() {
+			public void run() {
+				try {
+					PeerFinder finder = new LocalPeerFinder();
+					finders.add(finder);
+					first.getAdmission().coordinate(serverSocket, HELPERS,
+							finder);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}));
+		for (int k = 0; k < HELPERS; k++) {
+			joins.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						PeerFinder finder = new LocalPeerFinder();
+						finders.add(finder);
+						engines.add(Admission.join(finder, false, false,
+								false));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}));
+		}
+		for (Thread t : joins) {
+			t.start();
+		}
+		for (Thread t : joins) {
+			t.join();
+		}
+		serverSocket.close();
+		for (PeerFinder f : finders) {
+			f.unregister();
+		}
+		engines.add(0, first);
+		Check.equal(HELPERS + 1, engines.size(), "engines joined");
+
+		int total = 0;
+		for (LocalEngine e : engines) {
+			total += e.countAgents();
+		}
+		Check.equal(placed, total, "agents once the regions are handed out");
+
+		// Every cell is in exactly one engine's region.
+		int uncovered = 0;
+		int overlapping = 0;
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				int owners = 0;
+				for (LocalEngine e : engines) {
+					if (e.hasCell(x, y)) {
+						owners++;
+					}
+				}
+				if (owners == 0) {
+					uncovered++;
+				} else if (owners > 1) {
+					overlapping++;
+				}
+			}
+		}
+		Check.equal(0, uncovered, "cells nobody owns");
+		Check.equal(0, overlapping, "cells more than one engine owns");
+
+		// Each helper's layout from the first engine names every engine and
+		// its region, and each engine sees every other where it is.
+		for (LocalEngine e : engines) {
+			if (e != first) {
+				Message.RegionMap map = e.getAdmission().getRegionMap();
+				Check.that(map != null && map.start, e.getID()
+						+ " was told to start");
+				Check.equal(HELPERS + 1, map.regions.size(), e.getID()
+						+ " regions in its layout");
+				for (Message.Region r : map.regions) {
+					LocalEngine owner = find(engines, r.getID());
+					Check.that(owner != null && owns(owner, r), e.getID()
+							+ " has " + r.getID() + " where it is");
+				}
+			}
+			for (LocalEngine other : engines) {
+				if (other == e) {
+					continue;
+				}
+				RemoteEngine re = e.getPeer(other.getID());
+				Check.that(re != null && sameRegion(re, other), e.getID()
+						+ " is linked to " + other.getID() + " where it is");
+			}
+		}
+
+		for (final LocalEngine e : engines) {
+			e.setShowGrid(false);
+			e.setVerbose(false);
+			e.setStopTurn(TURNS);
+			new Thread(new Runnable() {
+				public void run() {
+					e.go();
+				}
+			}).start();
+		}
+		long end = System.currentTimeMillis() + 60000;
+		boolean idle = false;
+		while (!idle && System.currentTimeMillis() < end) {
+			Thread.sleep(50);
+			idle = true;
+			for (LocalEngine e : engines) {
+				idle &= e.isIdle();
+			}
+		}
+		Check.that(idle, "the run reached turn " + TURNS);
+		total = 0;
+		for (LocalEngine e : engines) {
+			total += e.countAgents();
+		}
+		Check.equal(placed, total, "agents after " + TURNS + " turns");
+		for (LocalEngine e : engines) {
+			e.shutdown();
+		}
+		Check.done("AdmissionTest");
+		System.exit(0);
+	}
+
+	static LocalEngine find(List<LocalEngine> engines, String id) {
+		for (LocalEngine e : engines) {
+			if (e.getID().equals(id)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	// Whether the engine owns exactly the region.
+	static boolean owns(LocalEngine e, Message.Region r) {
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				boolean inside = x >= r.tlx && x < r.tlx + r.width
+						&& y >= r.tly && y < r.tly + r.height;
+				if (e.hasCell(x, y) != inside) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	static boolean sameRegion(RemoteEngine re, LocalEngine e) {
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				if (!re.hasCell(x, y).equals(e.hasCell(x, y))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
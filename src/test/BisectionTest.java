@@ -0,0 +1,67 @@
+package test;
+
+import java.util.ArrayList;
+
+import net.Message.Region;
+import engine.Bisection;
+
+/**
+ * Splits a region into parts, with and without weight, and checks the parts
+ * cover it exactly once, the first keeps its corner, and the weight is
+ * shared out about evenly.
+ */
+public class BisectionTest {
+
+	public static void main(String[] args) {
+		Region world = new Region(10, 20, 60, 40);
+		for (int parts = 1; parts <= 7; parts++) {
+			covers(world, new Bisection(world).split(parts), parts);
+		}
+
+		// All the weight in the left quarter: the cuts go there.
+		Bisection b = new Bisection(world);
+		for (int y = 20; y < 60; y++) {
+			for (int x = 10; x < 25; x++) {
+				b.add(x, y, 1);
+			}
+		}
+		ArrayList<Region> parts = b.split(4);
+		covers(world, parts, 4);
+		for (Region r : parts) {
+			int lo = Math.max(r.tlx, 10);
+			int hi = Math.min(r.tlx + r.width, 25);
+			long weight = hi > lo ? (long) (hi - lo) * r.height : 0;
+			Check.that(Math.abs(weight - 150) <= 40, "weight of part at "
+					+ r.tlx + ", " + r.tly + " is " + weight + ", not about 150");
+		}
+
+		try {
+			new Bisection(new Region(0, 0, 2, 2)).split(5);
+			Check.that(false, "splitting 4 cells 5 ways throws");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		Check.done("BisectionTest");
+	}
+
+	static void covers(Region world, ArrayList<Region> parts, int n) {
+		Check.equal(n, parts.size(), "parts");
+		Check.that(parts.get(0).tlx == world.tlx
+				&& parts.get(0).tly == world.tly, "first part keeps the corner");
+		int[][] owner = new int[world.width][world.height];
+		for (Region r : parts) {
+			for (int x = r.tlx; x < r.tlx + r.width; x++) {
+				for (int y = r.tly; y < r.tly + r.height; y++) {
+					owner[x - world.tlx][y - world.tly]++;
+				}
+			}
+		}
+		boolean once = true;
+		for (int[] column : owner) {
+			for (int c : column) {
+				once &= c == 1;
+			}
+		}
+		Check.that(once, n + " parts cover every cell once");
+	}
+}
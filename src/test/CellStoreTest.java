@@ -0,0 +1,148 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import engine.DenseCellStore;
+import engine.LocalEngine;
+import world.Agent;
+import world.LocalCell;
+import world.impl.Rabbit;
+
+/**
+ * Finds cells by their coordinates in a dense store and walks it in tile
+ * order, keeps the agents of a few cells in their ranges as they come and
+ * go, and keeps what was in a cell at the start of the turn apart from
+ * what is there now.
+ */
+public class CellStoreTest {
+
+	public static void main(String[] args) {
+		dense();
+		agents();
+		startOfTurn();
+		Check.done("CellStoreTest");
+	}
+
+	/*
+	 * A region that does not start at 0, 0 and is not a whole number of
+	 * tiles, so that both the offsets and the padding are tried.
+	 */
+	static void dense() {
+		LocalEngine engine = new LocalEngine(3, 5, 40, 20, 60, 30, false);
+		DenseCellStore store = new DenseCellStore(3, 5, 40, 20, engine);
+
+		Check.that(store.peek(10, 10) == null, "no view before it is asked for");
+		LocalCell cell = store.get(10, 10);
+		Check.that(cell.getX() == 10 && cell.getY() == 10, "get(10, 10) is "
+				+ cell.getX() + ", " + cell.getY());
+		Check.that(store.get(10, 10) == cell, "the same view each time");
+		Check.that(store.peek(10, 10) == cell, "peek finds the view");
+
+		int[][] outside = { { 2, 5 }, { 43, 5 }, { 3, 4 }, { 3, 25 } };
+		for (int[] c : outside) {
+			try {
+				store.get(c[0], c[1]);
+				Check.that(false, "get(" + c[0] + ", " + c[1] + ") throws");
+			} catch (IndexOutOfBoundsException e) {
+				// Expected.
+			}
+		}
+
+		HashSet<Integer> seen = new HashSet<Integer>();
+		long last = -1;
+		int n = 0;
+		boolean ordered = true;
+		boolean firstTile = true;
+		for (LocalCell c : store) {
+			Check.that(store.get(c.getX(), c.getY()) == c, "iterated view of "
+					+ c.getX() + ", " + c.getY() + " is the stored one");
+			Check.that(seen.add(c.getX() * 1000 + c.getY()), c.getX() + ", "
+					+ c.getY() + " visited once");
+			ordered &= c.getStoreIndex() > last;
+			last = c.getStoreIndex();
+			// The first 16x16 cells are the top left tile.
+			if (n < 16 * 16) {
+				firstTile &= c.getX() < 3 + 16 && c.getY() < 5 + 16;
+			}
+			n++;
+		}
+		Check.equal(40 * 20, n, "cells iterated");
+		Check.that(ordered, "iterated in store order");
+		Check.that(firstTile, "the first tile comes first");
+	}
+
+	/*
+	 * Adds and removes agents in a few cells at random, enough for their
+	 * ranges to be moved and the array laid out again, and checks each
+	 * cell still has exactly the agents it should.
+	 */
+	static void agents() {
+		LocalEngine engine = new LocalEngine(0, 0, 40, 40, 40, 40, false);
+		int[][] at = { { 0, 0 }, { 1, 0 }, { 17, 3 }, { 39, 39 } };
+		ArrayList<ArrayList<Agent>> expected = new ArrayList<ArrayList<Agent>>();
+		for (int k = 0; k < at.length; k++) {
+			expected.add(new ArrayList<Agent>());
+		}
+		Random random = new Random(42);
+		for (int step = 0; step < 5000; step++) {
+			int k = random.nextInt(at.length);
+			LocalCell cell = engine.getCell(at[k][0], at[k][1]);
+			ArrayList<Agent> mine = expected.get(k);
+			if (mine.isEmpty() || random.nextInt(3) > 0) {
+				Agent a = new Rabbit();
+				cell.add(a);
+				mine.add(a);
+			} else {
+				Agent a = mine.remove(random.nextInt(mine.size()));
+				cell.remove(a);
+			}
+		}
+		int total = 0;
+		for (int k = 0; k < at.length; k++) {
+			LocalCell cell = engine.getCell(at[k][0], at[k][1]);
+			ArrayList<Agent> mine = expected.get(k);
+			Check.equal(mine.size(), cell.getAgents().size(), "agents in "
+					+ at[k][0] + ", " + at[k][1]);
+			Check.that(new HashSet<Agent>(cell.getAgents()).equals(
+					new HashSet<Agent>(mine)), "the right agents in "
+					+ at[k][0] + ", " + at[k][1]);
+			total += mine.size();
+		}
+		Check.equal(total, engine.countAgents(), "agents in the engine");
+
+		// Emptying a cell leaves the others alone.
+		LocalCell first = engine.getCell(0, 0);
+		first.clear();
+		Check.equal(0, first.getAgents().size(), "agents after clear");
+		Check.equal(total - expected.get(0).size(), engine.countAgents(),
+				"agents after clearing one cell");
+	}
+
+	/*
+	 * Agents that arrive or leave during a turn do not change what was there
+	 * at its start, which is read through the same list every time.
+	 */
+	static void startOfTurn() {
+		LocalEngine engine = new LocalEngine(0, 0, 10, 10, 10, 10, false);
+		LocalCell cell = engine.getCell(5, 5);
+		Agent first = new Rabbit();
+		cell.add(first);
+		List<Agent> start = cell.startOfTurnAgents();
+		Check.equal(0, start.size(), "agents at the start of the turn");
+		Agent second = new Rabbit();
+		cell.add(second);
+		cell.remove(first);
+		Check.that(cell.startOfTurnAgents() == start, "the same list each time");
+		Check.equal(0, start.size(), "agents at the start after changes");
+		Check.equal(1, cell.getAgents().size(), "agents now");
+		try {
+			start.set(0, first);
+			Check.that(false, "the start of the turn cannot be changed");
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+	}
+}
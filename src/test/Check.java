@@ -0,0 +1,33 @@
+package test;
+
+/**
+ * What the tests here share: each checks what it expects with that(), and
+ * ends with done(), which exits with a failure if anything was wrong, so
+ * that make can run them one after another.
+ */
+public class Check {
+
+	private static int checks = 0;
+	private static int failures = 0;
+
+	public static void that(boolean ok, String what) {
+		checks++;
+		if (!ok) {
+			failures++;
+			System.out.println("FAILED: " + what);
+		}
+	}
+
+	public static void equal(long expected, long actual, String what) {
+		that(expected == actual, what + ": expected " + expected + ", got "
+				+ actual);
+	}
+
+	public static void done(String test) {
+		System.out.println(test + ": " + (checks - failures) + " of "
+				+ checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import engine.Checkpoint;
+
+/**
+ * Prunes a directory of checkpoints the way an engine does after writing
+ * one, and checks it keeps the last two of every engine still in the run
+ * and deletes the older ones of an engine that has left.
+ */
+public class CheckpointTest {
+
+	public static void main(String[] args) throws Exception {
+		File dir = File.createTempFile("checkpoints", "");
+		dir.delete();
+		dir.mkdirs();
+		String[] ids = { "0,0", "13,0", "26,0" };
+		for (int turn = 10; turn <= 40; turn += 10) {
+			for (String id : ids) {
+				// The engine 13,0 left after turn 20.
+				if (turn <= 20 || !id.equals("13,0")) {
+					Checkpoint.file(dir, turn, id).createNewFile();
+				}
+			}
+		}
+		new File(dir, "notes.txt").createNewFile();
+
+		HashSet<String> others = new HashSet<String>(Arrays.asList("26,0"));
+		Checkpoint.prune(dir, "0,0", others, 30);
+		check(dir, 10, "0,0", false);
+		check(dir, 20, "0,0", false);
+		check(dir, 30, "0,0", true);
+		check(dir, 40, "0,0", true);
+		// Left for 26,0 to delete itself.
+		check(dir, 10, "26,0", true);
+		check(dir, 20, "13,0", false);
+		check(dir, 10, "13,0", false);
+		Check.that(new File(dir, "notes.txt").exists(),
+				"other files are left alone");
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		Check.done("CheckpointTest");
+	}
+
+	static void check(File dir, int turn, String id, boolean kept) {
+		Check.that(Checkpoint.file(dir, turn, id).exists() == kept, id
+				+ " at turn " + turn + (kept ? " kept" : " deleted"));
+	}
+}
@@ -0,0 +1,53 @@
+package test;
+
+import engine.LocalEngine;
+import world.Agent;
+import world.impl.Rabbit;
+
+/**
+ * Agent and message IDs are an engine's ordinal in the top bits and a
+ * counter of its own in the rest, so engines never hand out the same one.
+ */
+public class IdLayoutTest {
+
+	static final int ORDINAL_SHIFT = LocalEngine.ORDINAL_SHIFT;
+
+	public static void main(String[] args) {
+		LocalEngine first = new LocalEngine(0, 0, 10, 10, 20, 10, false);
+		LocalEngine helper = new LocalEngine(10, 0, 10, 10, 20, 10, false);
+		helper.setOrdinal(3);
+
+		for (int i = 1; i <= 5; i++) {
+			Agent a = new Rabbit();
+			first.placeAgent(0, 0, a);
+			Agent b = new Rabbit();
+			helper.placeAgent(10, 0, b);
+			Check.equal(i, a.getId(), "first engine's agent " + i);
+			Check.equal(3, b.getId() >>> ORDINAL_SHIFT, "helper's ordinal");
+			Check.equal(i, b.getId() & ((1L << ORDINAL_SHIFT) - 1),
+					"helper's counter");
+		}
+
+		// Messages are counted apart from agents.
+		long m = helper.newMessageId();
+		Check.equal(3, m >>> ORDINAL_SHIFT, "message ordinal");
+		Check.equal(1, m & ((1L << ORDINAL_SHIFT) - 1), "message counter");
+		Check.equal(6, helper.newAgentId() & ((1L << ORDINAL_SHIFT) - 1),
+				"agent counter after a message");
+
+		// An agent that already has an ID keeps it wherever it is placed.
+		Agent moved = new Rabbit();
+		helper.placeAgent(11, 1, moved);
+		long id = moved.getId();
+		helper.getCell(11, 1).remove(moved);
+		first.placeAgent(1, 1, moved);
+		Check.equal(id, moved.getId(), "ID of an agent that moved");
+
+		// The largest ordinal still gives positive IDs.
+		LocalEngine last = new LocalEngine(0, 0, 1, 1, 1, 1, false);
+		last.setOrdinal((1 << (63 - ORDINAL_SHIFT)) - 1);
+		Check.that(last.newAgentId() > 0, "IDs of the last ordinal are positive");
+
+		Check.done("IdLayoutTest");
+	}
+}
@@ -0,0 +1,55 @@
+package test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import engine.LongMap;
+
+/**
+ * Puts, gets and removes random keys in a LongMap alongside a HashMap, with
+ * keys packed the way the sparse store packs tile coordinates so that many
+ * probe past each other, and checks the two always agree.
+ */
+public class LongMapTest {
+
+	public static void main(String[] args) {
+		LongMap<Long> map = new LongMap<Long>();
+		HashMap<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(7);
+		for (int step = 0; step < 100000; step++) {
+			long key = ((long) random.nextInt(64) << 32) | random.nextInt(64);
+			if (random.nextInt(3) > 0) {
+				Long value = Long.valueOf(step);
+				Check.that(eq(expected.put(key, value), map.put(key, value)),
+						"put of " + key + " at step " + step);
+			} else {
+				Check.that(eq(expected.remove(key), map.remove(key)),
+						"remove of " + key + " at step " + step);
+			}
+		}
+		Check.equal(expected.size(), map.size(), "size");
+		for (Long key : expected.keySet()) {
+			Check.that(eq(expected.get(key), map.get(key)), "get of " + key);
+		}
+		Check.that(map.get(-1L) == null, "get of a missing key");
+
+		HashSet<Long> values = new HashSet<Long>();
+		for (Long v : map) {
+			values.add(v);
+		}
+		Check.that(values.equals(new HashSet<Long>(expected.values())),
+				"iterated values");
+
+		for (Long key : expected.keySet()) {
+			map.remove(key);
+		}
+		Check.equal(0, map.size(), "size once emptied");
+		Check.that(!map.iterator().hasNext(), "nothing left to iterate");
+		Check.done("LongMapTest");
+	}
+
+	static boolean eq(Long a, Long b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,75 @@
+package test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.MemoryChannel;
+
+/**
+ * Sends a few megabytes through a link between two engines in one process,
+ * in writes of an odd size so that they straddle frames, and reads them back
+ * in reads of another odd size.
+ */
+public class MemoryChannelTest {
+
+	static final int BYTES = 3 << 20;
+
+	public static void main(String[] args) throws Exception {
+		MemoryChannel channel = new MemoryChannel();
+		send(channel.getOutputStream(), channel.getInputStream(), true,
+				"memory channel");
+		Check.done("MemoryChannelTest");
+	}
+
+	/*
+	 * Writes BYTES bytes numbered from 0 on another thread, reads them all
+	 * here, then closes the link and expects the end of the stream.
+	 */
+	static void send(final OutputStream out, InputStream in,
+			final boolean flush, String what) throws Exception {
+		final IOException[] failed = new IOException[1];
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					byte[] b = new byte[1000];
+					int sent = 0;
+					while (sent < BYTES) {
+						int n = Math.min(b.length, BYTES - sent);
+						for (int i = 0; i < n; i++) {
+							b[i] = (byte) (sent + i);
+						}
+						out.write(b, 0, n);
+						if (flush) {
+							out.flush();
+						}
+						sent += n;
+					}
+				} catch (IOException e) {
+					failed[0] = e;
+				}
+			}
+		});
+		writer.start();
+
+		byte[] b = new byte[777];
+		int got = 0;
+		boolean right = true;
+		while (got < BYTES) {
+			int n = in.read(b, 0, Math.min(b.length, BYTES - got));
+			if (n < 0) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				right &= b[i] == (byte) (got + i);
+			}
+			got += n;
+		}
+		writer.join();
+		Check.that(failed[0] == null, what + " wrote without " + failed[0]);
+		Check.equal(BYTES, got, what + " bytes read");
+		Check.that(right, what + " bytes in order");
+		out.close();
+		Check.equal(-1, in.read(), what + " ends once closed");
+	}
+}
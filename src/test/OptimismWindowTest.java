@@ -0,0 +1,47 @@
+package test;
+
+import engine.OptimismWindow;
+
+/**
+ * The optimism window grows while little is rolled back, shrinks while
+ * most is, stays put in between, and keeps to its bounds.
+ */
+public class OptimismWindowTest {
+
+	public static void main(String[] args) {
+		OptimismWindow w = new OptimismWindow(4, 1, 20);
+		Check.that(w.allows(13, 10), "3 turns ahead of a window of 4");
+		Check.that(!w.allows(14, 10), "4 turns ahead of a window of 4");
+
+		period(w, 0);
+		Check.equal(6, w.getWindow(), "window after a period with no waste");
+		period(w, 5);
+		Check.equal(6, w.getWindow(), "window after a period half wasted");
+		period(w, 8);
+		Check.equal(5, w.getWindow(), "window after a period mostly wasted");
+
+		for (int i = 0; i < 20; i++) {
+			period(w, 0);
+		}
+		Check.equal(20, w.getWindow(), "window held to its maximum");
+		for (int i = 0; i < 50; i++) {
+			period(w, 10);
+		}
+		Check.equal(1, w.getWindow(), "window held to its minimum");
+
+		w.setWindow(100);
+		Check.equal(20, w.getWindow(), "window set past its maximum");
+		Check.done("OptimismWindowTest");
+	}
+
+	/*
+	 * Runs one adaptation period of ten turns, that many of them rolled
+	 * back.
+	 */
+	static void period(OptimismWindow w, int rolledBack) {
+		w.rolledBack(rolledBack);
+		for (int i = 0; i < 10; i++) {
+			w.turnExecuted();
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package test;
+
+import java.io.File;
+
+import net.ShmRing;
+
+/**
+ * Sends a few megabytes each way through a shared memory ring between two
+ * engines on one machine, in writes of an odd size so that they straddle
+ * the end of the ring, and reads them back in reads of another odd size.
+ */
+public class ShmRingTest {
+
+	public static void main(String[] args) throws Exception {
+		long token = ShmRing.newToken();
+		File file = ShmRing.create(token);
+		if (file == null) {
+			System.out.println("No " + ShmRing.DIR + ", skipping the ring");
+		} else {
+			ShmRing[] mine = ShmRing.map(file.getPath(), token, true);
+			ShmRing[] theirs = ShmRing.map(file.getPath(), token, false);
+			file.delete();
+			Check.that(mine != null && theirs != null, "ring mapped");
+			Check.that(ShmRing.map(file.getPath(), token + 1, false) == null,
+					"ring not mapped once the file is gone");
+			MemoryChannelTest.send(mine[0].getOutputStream(),
+					theirs[1].getInputStream(), false, "ring");
+			MemoryChannelTest.send(theirs[0].getOutputStream(),
+					mine[1].getInputStream(), false, "ring back");
+		}
+		Check.done("ShmRingTest");
+	}
+}
@@ -0,0 +1,116 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.Message.Region;
+import engine.LocalEngine;
+import engine.Snapshot;
+import world.Agent;
+import world.LocalCell;
+import world.impl.ComplexRabbit;
+import world.impl.Rabbit;
+
+/**
+ * Writes a world of two classes of agent to a snapshot and reads it back,
+ * whole into one engine and in halves into two, and checks every agent
+ * comes back in its cell with its ID and fields.
+ */
+public class SnapshotTest {
+
+	static final int SIZE = 30;
+
+	public static void main(String[] args) throws Exception {
+		LocalEngine source = new LocalEngine(0, 0, SIZE, SIZE, SIZE, SIZE,
+				false);
+		for (int i = 0; i < 200; i++) {
+			int x = (i * 7) % SIZE;
+			int y = (i * 13) % SIZE;
+			if (i % 3 == 0) {
+				ComplexRabbit r = new ComplexRabbit();
+				r.energy = i;
+				r.age = i % 11;
+				source.placeAgent(x, y, r);
+			} else {
+				source.placeAgent(x, y, new Rabbit());
+			}
+		}
+		File file = File.createTempFile("snapshot-test", ".snap");
+		file.deleteOnExit();
+		Snapshot.write(file, 7, SIZE, SIZE, new Region(0, 0, SIZE, SIZE),
+				cells(source, 0, 0, SIZE, SIZE));
+
+		Snapshot snapshot = Snapshot.open(file);
+		try {
+			Check.equal(7, snapshot.getTurn(), "turn");
+			Check.equal(SIZE, snapshot.getGlobalWidth(), "global width");
+			Check.equal(SIZE, snapshot.getGlobalHeight(), "global height");
+			Check.equal(200, snapshot.getAgentCount(), "agents in the header");
+			Region r = snapshot.getRegion();
+			Check.that(r.tlx == 0 && r.tly == 0 && r.width == SIZE
+					&& r.height == SIZE, "region");
+
+			LocalEngine whole = new LocalEngine(0, 0, SIZE, SIZE, SIZE, SIZE,
+					false);
+			Check.equal(200, snapshot.load(whole), "agents loaded");
+			same(source, whole, 0, 0, SIZE, SIZE);
+
+			// Each engine only takes the cells in its own region.
+			LocalEngine top = new LocalEngine(0, 0, SIZE, SIZE / 2, SIZE,
+					SIZE, false);
+			LocalEngine bottom = new LocalEngine(0, SIZE / 2, SIZE, SIZE / 2,
+					SIZE, SIZE, false);
+			long loaded = snapshot.load(top) + snapshot.load(bottom);
+			Check.equal(200, loaded, "agents loaded in halves");
+			Check.equal(top.countAgents() + bottom.countAgents(), loaded,
+					"agents placed in halves");
+			same(source, top, 0, 0, SIZE, SIZE / 2);
+			same(source, bottom, 0, SIZE / 2, SIZE, SIZE / 2);
+		} finally {
+			snapshot.close();
+		}
+		Check.done("SnapshotTest");
+	}
+
+	static List<LocalCell> cells(LocalEngine engine, int tlx, int tly,
+			int width, int height) {
+		ArrayList<LocalCell> cells = new ArrayList<LocalCell>();
+		for (int y = tly; y < tly + height; y++) {
+			for (int x = tlx; x < tlx + width; x++) {
+				cells.add(engine.getCell(x, y));
+			}
+		}
+		return cells;
+	}
+
+	/*
+	 * Whether every cell of the region holds the same agents in both
+	 * engines, in the same order.
+	 */
+	static void same(LocalEngine expected, LocalEngine actual, int tlx,
+			int tly, int width, int height) {
+		for (int y = tly; y < tly + height; y++) {
+			for (int x = tlx; x < tlx + width; x++) {
+				List<Agent> a = expected.getCell(x, y).getAgents();
+				List<Agent> b = actual.getCell(x, y).getAgents();
+				String where = " in " + x + ", " + y;
+				Check.equal(a.size(), b.size(), "agents" + where);
+				for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+					Agent p = a.get(i);
+					Agent q = b.get(i);
+					Check.that(p.getClass() == q.getClass(), "class of "
+							+ p.getId() + where);
+					Check.equal(p.getId(), q.getId(), "ID" + where);
+					if (p instanceof ComplexRabbit && q instanceof ComplexRabbit) {
+						ComplexRabbit r = (ComplexRabbit) p;
+						ComplexRabbit s = (ComplexRabbit) q;
+						Check.equal(r.energy, s.energy, "energy of "
+								+ p.getId());
+						Check.equal(r.age, s.age, "age of " + p.getId());
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package test;
+
+import engine.LocalEngine;
+import engine.SparseCellStore;
+import world.Agent;
+import world.LocalCell;
+import world.impl.Rabbit;
+
+/**
+ * Finds cells by their coordinates in a sparse store, which holds only the
+ * tiles that were asked for, and runs a Rabbit across many tiles of a huge
+ * sparse world to check that the ones it left are freed.
+ */
+public class SparseCellStoreTest {
+
+	static final int SIZE = 1 << 20;
+	static final int TURNS = 100;
+
+	public static void main(String[] args) throws Exception {
+		lookup();
+		release();
+		Check.done("SparseCellStoreTest");
+	}
+
+	static void lookup() {
+		LocalEngine engine = new LocalEngine(0, 0, SIZE, SIZE, SIZE, SIZE,
+				false, true);
+		SparseCellStore store = new SparseCellStore(0, 0, SIZE, SIZE, engine);
+
+		Check.that(store.peek(5, 5) == null, "no tile before it is asked for");
+		LocalCell a = store.get(5, 5);
+		LocalCell b = store.get(SIZE - 1, SIZE - 1);
+		Check.that(store.get(5, 5) == a && store.peek(5, 5) == a,
+				"the same view each time");
+		Check.that(store.peek(6, 5) == null, "only asked for cells have views");
+		Check.equal(2, store.chunkCount(), "tiles held");
+		int n = 0;
+		for (LocalCell c : store) {
+			Check.that(c == a || c == b, "iterated " + c.getX() + ", " + c.getY());
+			n++;
+		}
+		Check.equal(2, n, "cells iterated");
+	}
+
+	/*
+	 * A Rabbit steps one cell east each turn, so it passes through a new
+	 * tile every few turns, and only the tiles it is in now and was in a
+	 * turn ago may still be held.
+	 */
+	static void release() throws Exception {
+		final LocalEngine engine = new LocalEngine(0, 0, SIZE, SIZE, SIZE,
+				SIZE, false, true);
+		engine.setShowGrid(false);
+		engine.setVerbose(false);
+		engine.setStopTurn(TURNS);
+		Agent rabbit = new Rabbit();
+		engine.placeAgent(SIZE - 10, 7, rabbit);
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				engine.go();
+			}
+		});
+		t.start();
+		while (engine.turn < TURNS) {
+			Thread.sleep(1);
+		}
+		engine.shutdown();
+		t.join();
+
+		Check.equal(1, engine.countAgents(), "agents");
+		SparseCellStore store = (SparseCellStore) engine.getCellStore();
+		Check.that(store.chunkCount() <= 2, "tiles held after " + TURNS
+				+ " turns: " + store.chunkCount());
+		int x = (SIZE - 10 + TURNS) % SIZE;
+		LocalCell cell = store.peek(x, 7);
+		Check.that(cell != null && cell.getAgents().contains(rabbit),
+				"the Rabbit is at " + x + ", 7");
+	}
+}
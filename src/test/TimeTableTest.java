@@ -0,0 +1,43 @@
+package test;
+
+import java.util.HashMap;
+
+import engine.TimeTable;
+
+/**
+ * The time table only takes news that is newer than what it has, whichever
+ * way it comes, and holds GVT back for engines that are expected but have
+ * not reported, and not for ones that have left.
+ */
+public class TimeTableTest {
+
+	public static void main(String[] args) {
+		TimeTable a = new TimeTable();
+		TimeTable b = new TimeTable();
+		a.setOwn("a", 5);
+		b.setOwn("b", 8);
+		Check.equal(5, a.min(100), "GVT with only ourselves");
+		Check.equal(3, a.min(3), "fallback below everything");
+
+		a.expect("b");
+		Check.equal(0, a.min(100), "GVT held by an engine yet to report");
+		a.merge(b.snapshot());
+		Check.equal(5, a.min(100), "GVT once it has reported");
+
+		// A stale copy relayed back must not undo a newer report.
+		HashMap<String, int[]> stale = a.snapshot();
+		a.setOwn("a", 9);
+		b.merge(a.snapshot());
+		b.merge(stale);
+		Check.equal(8, b.min(100), "GVT after a stale relay");
+		a.expect("a");
+		Check.equal(8, a.min(100), "expecting a known engine changes nothing");
+
+		a.departed("b");
+		Check.equal(9, a.min(100), "GVT once b has left");
+		b.setOwn("b", 10);
+		a.merge(b.snapshot());
+		Check.equal(9, a.min(100), "a departed engine stays gone");
+		Check.done("TimeTableTest");
+	}
+}
@@ -2,16 +2,35 @@ package world;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class Agent {
 
-	transient LocalCell cell;
+	transient Cell cell;
+	// Where this agent is in its LocalCell's list of agents.
+	transient int cellIndex = -1;
+	transient boolean alive = true;
+	// The last turn this agent acted in.
 	int turn = 0;
-	public boolean hasMoved = false;
+	// Unique across the whole world, or 0 until the agent is first placed.
+	// See LocalEngine.newAgentId().
+	long id = 0;
+	// This agent's public int fields as they were when it last started to
+	// act, so that others still see them that way for the rest of the turn.
+	transient int[] fieldsBefore;
+
+	// The public int fields of each agent class; these are what other agents
+	// can inspect().
+	private static final ConcurrentHashMap<Class<?>, Field[]> intFields = new ConcurrentHashMap<Class<?>, Field[]>();
 
 	public abstract void go();
 
@@ -23,13 +42,147 @@ public abstract class Agent {
 		cell.move(this, x, y);
 	}
 
-	public void setCell(LocalCell cell) {
+	/**
+	 * @return every other agent within radius cells of this one (in both
+	 *         directions, so a square of side 2 * radius + 1), as they all
+	 *         were at the start of this turn. Cells on other engines within
+	 *         the halo width are read from the halo; the engines that own
+	 *         any further away are asked for them.
+	 */
+	public Neighborhood look(int radius) {
+		return cell.look(this, radius);
+	}
+
+	/**
+	 * @return the value the named public int field of an agent this one saw
+	 *         had at the start of this turn, or null if that agent or field
+	 *         is not there. Agents on other engines are asked for it.
+	 */
+	public Integer inspect(AgentInfo other, String field) {
+		return cell.inspect(this, Collections.singletonList(other), field)[0];
+	}
+
+	/**
+	 * Like inspect(AgentInfo, String) for several agents at once, which is
+	 * much cheaper than one at a time when some of them are remote.
+	 */
+	public Integer[] inspect(List<AgentInfo> others, String field) {
+		return cell.inspect(this, others, field);
+	}
+
+	/**
+	 * @return the named public int field as it was at the start of the given
+	 *         turn, which must be the current one, or null if there is no
+	 *         such field.
+	 */
+	public Integer getFieldAtStartOf(String name, int turn) {
+		Field[] fields = intFields(getClass());
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i].getName().equals(name)) {
+				if (this.turn == turn && fieldsBefore != null) {
+					return fieldsBefore[i];
+				}
+				try {
+					return fields[i].getInt(this);
+				} catch (IllegalAccessException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Field[] intFields(Class<?> c) {
+		Field[] fields = intFields.get(c);
+		if (fields == null) {
+			ArrayList<Field> found = new ArrayList<Field>();
+			for (Field f : c.getDeclaredFields()) {
+				int modifiers = f.getModifiers();
+				if (Modifier.isPublic(modifiers) && !Modifier.isFinal(modifiers)
+						&& !Modifier.isStatic(modifiers)
+						&& f.getType() == int.class) {
+					found.add(f);
+				}
+			}
+			fields = found.toArray(new Field[found.size()]);
+			intFields.put(c, fields);
+		}
+		return fields;
+	}
+
+	/**
+	 * Places child in the cell (x, y) away from this agent's, once every
+	 * agent has acted this turn. The child first acts next turn.
+	 */
+	public void spawn(Agent child, int x, int y) {
+		cell.spawn(child, x, y);
+	}
+
+	/**
+	 * Removes this agent from the world once every agent has acted this turn.
+	 * It does not act again.
+	 */
+	public void kill() {
+		if (alive) {
+			alive = false;
+			if (cell != null) {
+				cell.kill(this);
+			}
+		}
+	}
+
+	public boolean isAlive() {
+		return alive;
+	}
+
+	public void setCell(Cell cell) {
 		this.cell = cell;
 	}
 
+	public Cell getCell() {
+		return cell;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Makes an agent taken from an AgentPool look newly constructed before it
+	 * is read into. Public int fields are read back anyway. A class with any
+	 * other state that its constructor sets up has to override this to set
+	 * it up again, and call super.reset().
+	 */
+	protected void reset() {
+		cell = null;
+		cellIndex = -1;
+		alive = true;
+		turn = 0;
+		id = 0;
+	}
+
 	public void start(int turn) {
-		if (!hasMoved) {
-			hasMoved = true;
+		// An agent that moved into a cell we have not reached yet this turn
+		// has already acted.
+		if (alive && this.turn < turn) {
+			Field[] fields = intFields(getClass());
+			if (fields.length > 0) {
+				if (fieldsBefore == null) {
+					fieldsBefore = new int[fields.length];
+				}
+				try {
+					for (int i = 0; i < fields.length; i++) {
+						fieldsBefore[i] = fields[i].getInt(this);
+					}
+				} catch (IllegalAccessException e) {
+					e.printStackTrace();
+				}
+			}
+			this.turn = turn;
 			this.go();
 		}
 	}
@@ -51,6 +204,7 @@ public abstract class Agent {
 			}
 			out.writeUTF(c.getName());
 			out.writeInt(turn);
+			out.writeLong(id);
 			out.writeInt(writeableFields.size());
 			for (Field f : writeableFields) {
 				Class t = f.getType();
@@ -66,13 +220,68 @@ public abstract class Agent {
 		return byteStream.toByteArray();
 	}
 
+	/**
+	 * @return the fields writePacked() writes for a class, in order: its
+	 *         public int fields, the same ones other agents can inspect().
+	 */
+	public static Field[] packedFields(Class<?> c) {
+		return intFields(c);
+	}
+
+	/**
+	 * Writes this agent's turn, ID and the values of its packedFields(),
+	 * without its class or the names of its fields, for a file that records
+	 * those once per class.
+	 */
+	public void writePacked(DataOutput out) throws IOException {
+		out.writeInt(turn);
+		out.writeLong(id);
+		try {
+			for (Field f : intFields(getClass())) {
+				out.writeInt(f.getInt(this));
+			}
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads into this agent what writePacked() wrote. fields are the fields
+	 * that were written, as they are in this agent's class; a value whose
+	 * field is null, because the class no longer has it, is skipped.
+	 */
+	public void readPacked(ByteBuffer in, Field[] fields) {
+		turn = in.getInt();
+		id = in.getLong();
+		try {
+			for (Field f : fields) {
+				int value = in.getInt();
+				if (f != null) {
+					f.setInt(this, value);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		}
+	}
+
 	public static Agent read(DataInputStream in) {
+		return read(in, null);
+	}
+
+	/**
+	 * Reads an agent written by toBytes(), reusing one from the pool if
+	 * there is one.
+	 */
+	public static Agent read(DataInputStream in, AgentPool pool) {
 		Agent agent = null;
 		try {
 			String classname = in.readUTF();
-			Class c = Class.forName(classname);
-			agent = (Agent) c.newInstance();
+			Class<?> c = Class.forName(classname);
+			agent = pool == null ? (Agent) c.getDeclaredConstructor()
+					.newInstance() : pool.get(c);
 			agent.turn = in.readInt();
+			agent.id = in.readLong();
 			int numFields = in.readInt();
 			for (int i = 0; i < numFields; i++) {
 				Field f = c.getDeclaredField(in.readUTF());
@@ -0,0 +1,39 @@
+package world;
+
+/**
+ * What one agent can see of another: who it is, what it is and where it
+ * is. This is all a halo carries, so it is the same for local and remote
+ * agents.
+ */
+public class AgentInfo {
+
+	public final long id;
+	public final String type;
+	public final int x;
+	public final int y;
+
+	public AgentInfo(long id, String type, int x, int y) {
+		this.id = id;
+		this.type = type;
+		this.x = x;
+		this.y = y;
+	}
+
+	public AgentInfo(Agent agent, int x, int y) {
+		this(agent.getId(), agent.getClass().getName(), x, y);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof AgentInfo)) {
+			return false;
+		}
+		AgentInfo o = (AgentInfo) other;
+		return id == o.id && x == o.x && y == o.y && type.equals(o.type);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (id ^ (id >>> 32));
+	}
+}
@@ -0,0 +1,66 @@
+package world;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Agents that are no longer in the world, kept by class so that Agent.read()
+ * can read into one of them instead of making a new one. A rollback throws
+ * away and reads back every agent an engine has, so without this each one
+ * makes a whole world's worth of garbage. Only one thread may use a pool.
+ */
+public class AgentPool {
+
+	// Enough for a rollback storm; beyond that let the rest be collected.
+	static final int MAX_PER_CLASS = 1 << 16;
+
+	private final HashMap<Class<?>, ArrayList<Agent>> free = new HashMap<Class<?>, ArrayList<Agent>>();
+	private long hits;
+	private long misses;
+
+	/**
+	 * @return an agent of the given class, as if newly constructed.
+	 */
+	public Agent get(Class<?> c) throws ReflectiveOperationException {
+		ArrayList<Agent> agents = free.get(c);
+		if (agents != null && !agents.isEmpty()) {
+			hits++;
+			Agent agent = agents.remove(agents.size() - 1);
+			agent.reset();
+			return agent;
+		}
+		misses++;
+		return (Agent) c.getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * Takes an agent back. Nothing else may refer to it any more.
+	 */
+	public void put(Agent agent) {
+		ArrayList<Agent> agents = free.get(agent.getClass());
+		if (agents == null) {
+			agents = new ArrayList<Agent>();
+			free.put(agent.getClass(), agents);
+		}
+		if (agents.size() < MAX_PER_CLASS) {
+			agents.add(agent);
+		}
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the fraction of agents that were reused rather than made, or 0
+	 *         if none were asked for.
+	 */
+	public double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+}
@@ -0,0 +1,164 @@
+package world;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The agents of a block of cells, in one array with each cell's agents next
+ * to each other. Cell i's agents are agents[start[i]] on, count[i] of them,
+ * with room for capacity[i] there. A cell that outgrows its room is moved
+ * to the end of the array and leaves a hole behind. Once the holes take up
+ * half the array, and are not just a few, it is laid out again in cell
+ * order without them.
+ *
+ * An agent's cellIndex is its place within its cell's agents, so it stays
+ * right when the cell is moved.
+ */
+public class AgentRanges {
+
+	// Room a cell is first given, and at least what it grows by.
+	static final int MIN_CAPACITY = 2;
+
+	final int[] start;
+	final int[] count;
+	final int[] capacity;
+	Agent[] agents = new Agent[16];
+	// Where the next cell moved to the end goes.
+	int end = 0;
+	// Places in agents[0, end) that no cell has room in.
+	int holes = 0;
+
+	/**
+	 * @param cells
+	 *            how many cells there are, numbered from 0.
+	 */
+	public AgentRanges(int cells) {
+		start = new int[cells];
+		count = new int[cells];
+		capacity = new int[cells];
+	}
+
+	public int count(int cell) {
+		return count[cell];
+	}
+
+	public Agent get(int cell, int i) {
+		return agents[start[cell] + i];
+	}
+
+	/**
+	 * Adds an agent to the end of a cell's agents.
+	 *
+	 * @return where it is among them.
+	 */
+	int add(int cell, Agent agent) {
+		int n = count[cell];
+		if (n == capacity[cell]) {
+			grow(cell);
+		}
+		agents[start[cell] + n] = agent;
+		count[cell] = n + 1;
+		return n;
+	}
+
+	/**
+	 * Moves the cell's last agent into the place of its i'th, which is gone.
+	 *
+	 * @return the agent that was moved, or null if the i'th was the last.
+	 */
+	Agent remove(int cell, int i) {
+		int last = start[cell] + --count[cell];
+		Agent moved = null;
+		if (start[cell] + i != last) {
+			moved = agents[last];
+			agents[start[cell] + i] = moved;
+		}
+		agents[last] = null;
+		return moved;
+	}
+
+	void clear(int cell) {
+		Arrays.fill(agents, start[cell], start[cell] + count[cell], null);
+		count[cell] = 0;
+	}
+
+	/**
+	 * Copies a cell's agents to the start of an array with room for them.
+	 */
+	void copy(int cell, Agent[] to) {
+		System.arraycopy(agents, start[cell], to, 0, count[cell]);
+	}
+
+	/**
+	 * @return a cell's agents as a list that follows them as they change
+	 *         and cannot be changed itself.
+	 */
+	List<Agent> list(final int cell) {
+		return new AbstractList<Agent>() {
+			@Override
+			public Agent get(int i) {
+				if (i < 0 || i >= count[cell]) {
+					throw new IndexOutOfBoundsException(i + " of "
+							+ count[cell]);
+				}
+				return agents[start[cell] + i];
+			}
+
+			@Override
+			public int size() {
+				return count[cell];
+			}
+		};
+	}
+
+	/*
+	 * Moves a full cell to the end of the array with twice the room.
+	 */
+	private void grow(int cell) {
+		// Laying out costs a look at every cell, so wait for enough holes
+		// to pay for it.
+		if (holes > end / 2 && holes >= count.length / 8) {
+			compact();
+		}
+		int room = Math.max(MIN_CAPACITY, 2 * capacity[cell]);
+		if (end + room > agents.length) {
+			agents = Arrays.copyOf(agents, Math.max(2 * agents.length, end
+					+ room));
+		}
+		int n = count[cell];
+		System.arraycopy(agents, start[cell], agents, end, n);
+		Arrays.fill(agents, start[cell], start[cell] + n, null);
+		holes += capacity[cell];
+		start[cell] = end;
+		capacity[cell] = room;
+		end += room;
+	}
+
+	/*
+	 * Lays the cells out again in order, each with room for just what it has,
+	 * so that the array is sorted by cell.
+	 */
+	private void compact() {
+		int size = 0;
+		for (int i = 0; i < count.length; i++) {
+			size += count[i];
+		}
+		Agent[] packed = new Agent[Math.max(16, 2 * size)];
+		int next = 0;
+		for (int i = 0; i < count.length; i++) {
+			if (count[i] == 0) {
+				start[i] = 0;
+				capacity[i] = 0;
+				continue;
+			}
+			System.arraycopy(agents, start[i], packed, next, count[i]);
+			start[i] = next;
+			capacity[i] = count[i];
+			next += count[i];
+		}
+		agents = packed;
+		end = next;
+		holes = 0;
+	}
+}
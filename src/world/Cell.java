@@ -1,5 +1,7 @@
 package world;
 
+import java.util.List;
+
 public abstract class Cell {
 
 	public int x;
@@ -14,6 +16,15 @@ public abstract class Cell {
 
 	abstract public void add(Agent agent);
 
+	abstract public void spawn(Agent child, int x, int y);
+
+	abstract public void kill(Agent agent);
+
+	abstract public Neighborhood look(Agent agent, int radius);
+
+	abstract public Integer[] inspect(Agent agent, List<AgentInfo> others,
+			String field);
+
 	public void setX(int x) {
 		this.x = x;
 	}
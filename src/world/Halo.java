@@ -0,0 +1,115 @@
+package world;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A copy of the cells along an engine's border, as they were at the start of
+ * a turn, which the engine sends to the neighbour on the other side of that
+ * border so that its agents can look across it. Empty cells are left out.
+ */
+public class Halo {
+
+	// The turn whose agents may read this halo.
+	public final int turn;
+	// Higher for a halo sent later. If the sender rolls back it sends a
+	// turn's halo again, and the copies may be handled out of order.
+	public long version;
+	HashMap<Long, ArrayList<AgentInfo>> cells = new HashMap<Long, ArrayList<AgentInfo>>();
+
+	public Halo(int turn) {
+		this.turn = turn;
+	}
+
+	public static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	public void add(AgentInfo info) {
+		Long key = key(info.x, info.y);
+		ArrayList<AgentInfo> cell = cells.get(key);
+		if (cell == null) {
+			cell = new ArrayList<AgentInfo>();
+			cells.put(key, cell);
+		}
+		cell.add(info);
+	}
+
+	public List<AgentInfo> get(long key) {
+		ArrayList<AgentInfo> cell = cells.get(key);
+		if (cell == null) {
+			return Collections.emptyList();
+		}
+		return cell;
+	}
+
+	/**
+	 * @return whether two halos, either of which may be null, agree about
+	 *         the cell with the given key. The agents of a cell may come in
+	 *         any order, as a cell does not keep its agents in order and a
+	 *         turn that is rolled back and run again may leave them in
+	 *         another.
+	 */
+	public static boolean same(Halo a, Halo b, long key) {
+		List<AgentInfo> x = a == null ? Collections.<AgentInfo> emptyList() : a.get(key);
+		List<AgentInfo> y = b == null ? Collections.<AgentInfo> emptyList() : b.get(key);
+		if (x.size() != y.size()) {
+			return false;
+		}
+		if (x.size() <= 1) {
+			return x.equals(y);
+		}
+		// Agent IDs are unique, so the lists are the same set or differ.
+		return new HashSet<AgentInfo>(x).containsAll(y);
+	}
+
+	/*
+	 * Turn (4 bytes) Cells (4 bytes) then for each cell: X (4 bytes) Y (4
+	 * bytes) Agents (4 bytes) then for each agent: AgentID (8 bytes) Class
+	 * (UTF)
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(byteStream);
+			out.writeInt(turn);
+			out.writeInt(cells.size());
+			for (Map.Entry<Long, ArrayList<AgentInfo>> e : cells.entrySet()) {
+				ArrayList<AgentInfo> cell = e.getValue();
+				out.writeInt(cell.get(0).x);
+				out.writeInt(cell.get(0).y);
+				out.writeInt(cell.size());
+				for (AgentInfo a : cell) {
+					out.writeLong(a.id);
+					out.writeUTF(a.type);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return byteStream.toByteArray();
+	}
+
+	public static Halo read(DataInputStream in) throws IOException {
+		Halo halo = new Halo(in.readInt());
+		int cells = in.readInt();
+		for (int i = 0; i < cells; i++) {
+			int x = in.readInt();
+			int y = in.readInt();
+			int agents = in.readInt();
+			for (int j = 0; j < agents; j++) {
+				long id = in.readLong();
+				halo.add(new AgentInfo(id, in.readUTF(), x, y));
+			}
+		}
+		return halo;
+	}
+}
@@ -3,48 +3,164 @@ package world;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
 
+import engine.CellStore;
 import engine.LocalEngine;
 
+/**
+ * One cell of an engine's region, as agent code sees it. The cell's agents
+ * are not kept here but in its store's AgentRanges, with those of the cells
+ * around it.
+ */
 public class LocalCell extends Cell {
-	LocalEngine engine;
-	public ArrayList<Agent> agents;
+	final CellStore store;
+	final AgentRanges ranges;
+	// Which of the ranges' cells this is.
+	final int slot;
+	// Position in the engine's list of occupied cells, or -1 while empty.
+	int activeIndex = -1;
+	// Position in the engine's CellStore.
+	long storeIndex;
+	// Whether the GUI still shows this cell's old occupancy.
+	boolean dirty = false;
+	// The agents that were here at the start of the turn, copied the first
+	// time the cell is stepped, looked at or changed in it, into the same
+	// array every turn unless it has to grow. See LocalEngine.getEpoch().
+	Agent[] snapshot = NONE;
+	int snapshotCount = 0;
+	int snapshotEpoch = -1;
+	static final Agent[] NONE = new Agent[0];
+	// The first snapshotCount of snapshot.
+	final List<Agent> startOfTurn = new AbstractList<Agent>() {
+		@Override
+		public Agent get(int i) {
+			if (i < 0 || i >= snapshotCount) {
+				throw new IndexOutOfBoundsException(i + " of "
+						+ snapshotCount);
+			}
+			return snapshot[i];
+		}
 
-	public LocalCell(int x, int y, LocalEngine engine) {
+		@Override
+		public int size() {
+			return snapshotCount;
+		}
+	};
+
+	public LocalCell(int x, int y, CellStore store, AgentRanges ranges,
+			int slot) {
 		super(x, y);
-		setAgents(new ArrayList<Agent>());
-		this.engine = engine;
+		this.store = store;
+		this.ranges = ranges;
+		this.slot = slot;
+	}
+
+	private LocalEngine engine() {
+		return store.getEngine();
 	}
 
 	public void go(int turn) {
-		int totalAgents = getAgents().size();
-		for (int i = 0; i < totalAgents; i++) {
-			getAgents().get(i).start(turn);
-			if (getAgents().isEmpty()) {
-				break;
-			}
-			if (getAgents().size() < totalAgents) {
-				totalAgents = getAgents().size();
-				i -= (totalAgents - getAgents().size());
+		// Agents leave and arrive while we step through them, so step
+		// through the ones that were here when the turn started.
+		List<Agent> agents = startOfTurnAgents();
+		for (int i = 0; i < agents.size(); i++) {
+			agents.get(i).start(turn);
+		}
+	}
+
+	/**
+	 * @return the agents that were in this cell at the start of the current
+	 *         turn, as a list that cannot be changed and holds them until
+	 *         the turn starts again.
+	 */
+	public List<Agent> startOfTurnAgents() {
+		int epoch = engine().getEpoch();
+		if (snapshotEpoch != epoch) {
+			int n = ranges.count(slot);
+			if (n > snapshot.length) {
+				snapshot = new Agent[Math.max(n, 2 * snapshot.length)];
+			} else if (n < snapshotCount) {
+				// Let go of agents that have left.
+				Arrays.fill(snapshot, n, snapshotCount, null);
 			}
+			ranges.copy(slot, snapshot);
+			snapshotCount = n;
+			snapshotEpoch = epoch;
 		}
+		return startOfTurn;
 	}
 
 	@Override
 	public void move(Agent agent, int x, int y) {
-		engine.moveAgent(agent, this, x, y);
+		engine().moveAgent(agent, this, x, y);
+	}
+
+	@Override
+	public void spawn(Agent child, int x, int y) {
+		engine().spawnAgent(this, child, x, y);
+	}
+
+	@Override
+	public void kill(Agent agent) {
+		engine().killAgent(agent);
+	}
+
+	@Override
+	public Neighborhood look(Agent agent, int radius) {
+		return engine().look(agent, this, radius);
+	}
+
+	@Override
+	public Integer[] inspect(Agent agent, List<AgentInfo> others, String field) {
+		return engine().inspect(others, field);
 	}
 
 	@Override
 	public void add(Agent agent) {
+		if (agent.id == 0) {
+			agent.id = engine().newAgentId();
+		}
+		startOfTurnAgents();
 		agent.setCell(this);
-		getAgents().add(agent);
+		agent.cellIndex = ranges.add(slot, agent);
+		if (agent.cellIndex == 0) {
+			engine().activate(this);
+		}
 	}
 
+	/**
+	 * Removes an agent in constant time by moving the last agent into its
+	 * place, so the order of the agents in a cell is not preserved.
+	 */
 	public void remove(Agent agent) {
-		getAgents().remove(agent);
-		// Handle error.
+		int i = agent.cellIndex;
+		if (i < 0 || i >= ranges.count(slot) || ranges.get(slot, i) != agent) {
+			// Not in this cell.
+			return;
+		}
+		startOfTurnAgents();
+		Agent moved = ranges.remove(slot, i);
+		if (moved != null) {
+			moved.cellIndex = i;
+		}
+		agent.cellIndex = -1;
+		if (ranges.count(slot) == 0) {
+			engine().deactivate(this);
+		}
+	}
+
+	/**
+	 * Removes every agent from this cell.
+	 */
+	public void clear() {
+		if (ranges.count(slot) > 0) {
+			startOfTurnAgents();
+			ranges.clear(slot);
+			engine().deactivate(this);
+		}
 	}
 
 	public byte[] serialize() {
@@ -54,14 +170,15 @@ public class LocalCell extends Cell {
 			dos = new DataOutputStream(s);
 			dos.writeInt(x);
 			dos.writeInt(y);
-			dos.writeInt(agents.size());
+			int count = ranges.count(slot);
+			dos.writeInt(count);
 			/*
 			 * if(agents.size() != 0) {System.err.println(MessageFormat.format(
 			 * "Serializing cell ({0}, {1}); {2} agents.", x, y,
 			 * agents.size())); }
 			 */
-			for (Agent a : agents) {
-				dos.write(a.toBytes());
+			for (int i = 0; i < count; i++) {
+				dos.write(ranges.get(slot, i).toBytes());
 			}
 			dos.flush();
 		} catch (IOException e) {
@@ -70,17 +187,35 @@ public class LocalCell extends Cell {
 		return s.toByteArray();
 	}
 
-	public void resetAgents() {
-		for (Agent a : getAgents()) {
-			a.hasMoved = false;
-		}
+	/**
+	 * @return the agents here now, as a list that cannot be changed. Use
+	 *         add() and remove().
+	 */
+	public List<Agent> getAgents() {
+		return ranges.list(slot);
+	}
+
+	public void setActiveIndex(int activeIndex) {
+		this.activeIndex = activeIndex;
+	}
+
+	public int getActiveIndex() {
+		return activeIndex;
+	}
+
+	public void setStoreIndex(long storeIndex) {
+		this.storeIndex = storeIndex;
+	}
+
+	public long getStoreIndex() {
+		return storeIndex;
 	}
 
-	public void setAgents(ArrayList<Agent> agents) {
-		this.agents = agents;
+	public void setDirty(boolean dirty) {
+		this.dirty = dirty;
 	}
 
-	public ArrayList<Agent> getAgents() {
-		return agents;
+	public boolean isDirty() {
+		return dirty;
 	}
 }
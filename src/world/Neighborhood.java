@@ -0,0 +1,50 @@
+package world;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The agents an agent saw when it called look().
+ */
+public class Neighborhood {
+
+	ArrayList<AgentInfo> agents = new ArrayList<AgentInfo>();
+
+	public void add(AgentInfo info) {
+		agents.add(info);
+	}
+
+	public ArrayList<AgentInfo> getAgents() {
+		return agents;
+	}
+
+	public int size() {
+		return agents.size();
+	}
+
+	public int count(Class<? extends Agent> type) {
+		return count(type.getName());
+	}
+
+	public int count(String type) {
+		int count = 0;
+		for (AgentInfo a : agents) {
+			if (a.type.equals(type)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of agents of each class name.
+	 */
+	public HashMap<String, Integer> counts() {
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (AgentInfo a : agents) {
+			Integer n = counts.get(a.type);
+			counts.put(a.type, n == null ? 1 : n + 1);
+		}
+		return counts;
+	}
+}
@@ -1,5 +1,7 @@
 package world;
 
+import java.util.List;
+
 import engine.RemoteEngine;
 
 public class RemoteCell extends Cell {
@@ -16,10 +18,31 @@ public class RemoteCell extends Cell {
 		engine.sendAgent(this, agent);
 	}
 
+	// An agent is in a RemoteCell while it waits to be sent there at the
+	// end of the turn.
 	@Override
 	public void move(Agent agent, int x, int y) {
-		// TODO Auto-generated method stub
+		engine.getLocalEngine().moveAgent(agent, this, x, y);
+	}
+
+	@Override
+	public void spawn(Agent child, int x, int y) {
+		engine.getLocalEngine().spawnAgent(this, child, x, y);
+	}
+
+	@Override
+	public void kill(Agent agent) {
+		engine.getLocalEngine().killAgent(agent);
+	}
+
+	@Override
+	public Neighborhood look(Agent agent, int radius) {
+		return engine.getLocalEngine().look(agent, this, radius);
+	}
 
+	@Override
+	public Integer[] inspect(Agent agent, List<AgentInfo> others, String field) {
+		return engine.getLocalEngine().inspect(others, field);
 	}
 
 }
@@ -1,37 +1,65 @@
 package world.impl;
 
+import java.util.ArrayList;
 import java.util.Random;
 
 import world.Agent;
+import world.AgentInfo;
+import world.Neighborhood;
 
 public class ComplexRabbit extends Agent {
 	final int deathFromAge = 20;
+	// Energy a rabbit gets from the grass in a turn, shared with the rabbits
+	// around it.
+	final int grass = 40;
 	Random r = new Random();
 	public int energy = 75;
 	public int age = 0;
 	
 	@Override
 	public void go() {
+		Neighborhood around = look(1);
+		energy = energy + grass / (1 + around.count(ComplexRabbit.class));
 		
 		// move(r.nextInt(5),r.nextInt(5));
 		move(1, 0);
 		energy = energy - 10;
 		age++;
 		
-		if (energy >= 100) {
+		if (energy >= 100 && hasMate(around)) {
 			reproduce();
 		}
 		
-		if (age == 20) {
+		if (age == deathFromAge || energy <= 0) {
 			die();
 		}
 	}
 	
+	/*
+	 * Whether a rabbit next to this one, on this engine or another, was fed
+	 * well enough to breed at the start of the turn.
+	 */
+	boolean hasMate(Neighborhood around) {
+		ArrayList<AgentInfo> rabbits = new ArrayList<AgentInfo>();
+		for (AgentInfo a : around.getAgents()) {
+			if (a.type.equals(ComplexRabbit.class.getName())) {
+				rabbits.add(a);
+			}
+		}
+		for (Integer e : inspect(rabbits, "energy")) {
+			if (e != null && e >= 50) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public void reproduce() {
 		energy -= 25;
+		spawn(new ComplexRabbit(), 0, 0);
 	}
 	
 	public void die() {
-		
+		kill();
 	}
 }